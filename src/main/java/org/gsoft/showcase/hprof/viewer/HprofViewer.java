@@ -1,31 +1,62 @@
 package org.gsoft.showcase.hprof.viewer;
 
-import edu.tufts.eaftan.hprofparser.handler.NullRecordHandler;
-import edu.tufts.eaftan.hprofparser.handler.RecordHandler;
-import edu.tufts.eaftan.hprofparser.parser.HprofParser;
-import edu.tufts.eaftan.hprofparser.parser.HprofParser.ParseOptions;
-import edu.tufts.eaftan.hprofparser.parser.datastructures.Constant;
-import edu.tufts.eaftan.hprofparser.parser.datastructures.InstanceField;
-import edu.tufts.eaftan.hprofparser.parser.datastructures.Static;
-import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
-import edu.tufts.eaftan.hprofparser.parser.datastructures.Value;
+import org.gsoft.showcase.hprof.viewer.dump.BasicType;
+import org.gsoft.showcase.hprof.viewer.dump.ClassLayout;
+import org.gsoft.showcase.hprof.viewer.dump.HprofDumpReader;
+import org.gsoft.showcase.hprof.viewer.dump.HprofIndexHandler;
+import org.gsoft.showcase.hprof.viewer.dump.HprofIndexScanner;
+import org.gsoft.showcase.hprof.viewer.dump.HprofIndexScanner.HeapDumpSegment;
+import org.gsoft.showcase.hprof.viewer.storage.IndexDirectory;
 import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage;
 import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.ObjectInfo;
 import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.ObjectType;
 import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.PrimitiveType;
 import org.gsoft.showcase.hprof.viewer.storage.TypeInstancesFileStorage;
+import org.gsoft.showcase.hprof.viewer.util.ClassDictionary;
+import org.gsoft.showcase.hprof.viewer.util.LongLongHashMap;
+import org.gsoft.showcase.hprof.viewer.util.LongObjectHashMap;
+import org.gsoft.showcase.hprof.viewer.util.WeightedLruCache;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
+ * Indexes a heap dump (or loads its persistent index) on construction and then answers queries about its types,
+ * instances and arrays by reading dump records on demand.
+ * <p>
+ * Once constructed, the viewer is thread-safe: queries may be run by several threads at once (e.g. background
+ * prefetching, several viewer windows) with no external locking. Index and dump files are only read with positional
+ * or memory mapped reads, index tables are not modified after construction, decoded objects cache is synchronized and
+ * decoded objects shared between callers through it are immutable. The viewer itself must be handed over to other
+ * threads safely, e.g. via an executor or a concurrent collection.
+ * <p>
+ * Viewer keeps dump and index files open (mostly memory mapped) and runs background queries by threads of its own;
+ * {@link #close()} it once its dump is not viewed anymore, rather than leaving that to garbage collector.
+ * <p>
  * TODO in java.hprof: java.lang.ThreadLocal[][] is not nested as expected. Is it supposed to be flattened?
  * TODO (continued) also in java.hprof we have array-classes; is it a quirk?
  *
@@ -33,13 +64,13 @@ import java.util.stream.Collectors;
  *
  * TODO in idea.hprof: for ArrayList #1: open elementData[#1] - NPE
  */
-public class HprofViewer {
+public class HprofViewer implements Closeable {
 
     public static abstract class HeapDumpType {
         protected final String name;
-        protected final int instancesCount;
+        protected final long instancesCount;
 
-        protected HeapDumpType(String name, int instancesCount) {
+        protected HeapDumpType(String name, long instancesCount) {
             this.name = name;
             this.instancesCount = instancesCount;
         }
@@ -48,7 +79,7 @@ public class HprofViewer {
             return name;
         }
 
-        public int getInstancesCount() {
+        public long getInstancesCount() {
             return instancesCount;
         }
     }
@@ -56,7 +87,7 @@ public class HprofViewer {
     public static class HeapDumpClass extends HeapDumpType {
         private final long classId;
 
-        protected HeapDumpClass(String name, int instancesCount, long classId) {
+        protected HeapDumpClass(String name, long instancesCount, long classId) {
             super(name, instancesCount);
             this.classId = classId;
         }
@@ -78,7 +109,7 @@ public class HprofViewer {
     public static class HeapDumpObjectArray extends HeapDumpType {
         private final long elementClassId;
 
-        protected HeapDumpObjectArray(String name, int instancesCount, long elementClassId) {
+        protected HeapDumpObjectArray(String name, long instancesCount, long elementClassId) {
             super(name, instancesCount);
             this.elementClassId = elementClassId;
         }
@@ -100,7 +131,7 @@ public class HprofViewer {
     public static class HeapDumpPrimitiveArray extends HeapDumpType {
         private final PrimitiveType primitiveType;
 
-        protected HeapDumpPrimitiveArray(String name, int instancesCount,
+        protected HeapDumpPrimitiveArray(String name, long instancesCount,
                                          PrimitiveType primitiveType) {
             super(name, instancesCount);
             this.primitiveType = primitiveType;
@@ -263,62 +294,380 @@ public class HprofViewer {
     }
 
     public static abstract class HeapDumpArrayInstance extends HeapDumpObject {
-        protected HeapDumpArrayInstance(long id) {
+        protected final int length;
+
+        protected HeapDumpArrayInstance(long id, int length) {
             super(id);
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
         }
     }
 
     public static class HeapDumpObjectArrayInstance extends HeapDumpArrayInstance {
-        public HeapDumpObjectArrayInstance(long id) {
-            super(id);
+        public HeapDumpObjectArrayInstance(long id, int length) {
+            super(id, length);
         }
     }
 
     public static class HeapDumpPrimitiveArrayInstance extends HeapDumpArrayInstance {
-        public HeapDumpPrimitiveArrayInstance(long id) {
-            super(id);
+        public HeapDumpPrimitiveArrayInstance(long id, int length) {
+            super(id, length);
+        }
+    }
+
+    /**
+     * Stages of dump loading, in order of execution. If the dump has a valid index, it is loaded and no other phases
+     * follow.
+     */
+    public enum LoadingPhase {
+        LOADING_INDEX,
+        SCANNING_RECORDS,
+        INDEXING_OBJECTS,
+        MERGING_SHARDS,
+        SCANNING_STRINGS,
+        WRITING_INDEX
+    }
+
+    /**
+     * Receives progress of dump loading. Called by loading threads, one call at a time; should return quickly.
+     */
+    @FunctionalInterface
+    public interface LoadingProgressListener {
+        /**
+         * @param phaseBytesDone bytes of dump scanned in current phase so far
+         * @param phaseBytesSize bytes of dump to be scanned in current phase; 0 if phase doesn't scan the dump
+         * @param objectsIndexed dumped objects indexed so far
+         */
+        void progress(LoadingPhase phase, long phaseBytesDone, long phaseBytesSize, long objectsIndexed);
+    }
+
+    /**
+     * Lets another thread cancel dump loading. Loading checks it every few megabytes of dump scanned and between
+     * phases; once cancelled, it deletes index files written so far and throws {@link CancellationException}.
+     * <p>
+     * {@link #isCancelled()} may be overridden to also poll cancellation state kept elsewhere, e.g. by IDE progress.
+     */
+    public static class CancellationToken {
+        private volatile boolean cancelled;
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void throwIfCancelled() {
+            if (isCancelled()) {
+                throw new CancellationException("dump loading cancelled");
+            }
         }
     }
 
-    private final HprofParser parser;
+    private static final String CLASS_INSTANCES_FILE_NAME = "class_instances.bin";
+    private static final String OBJECT_ARRAYS_INSTANCES_FILE_NAME = "object_array_instances.bin";
+    private static final String PRIMITIVE_ARRAYS_INSTANCES_FILE_NAME = "primitive_array_instances.bin";
+    private static final String OBJECT_INFO_FILE_NAME = "object_info.bin";
+    private static final String VIEWER_METADATA_FILE_NAME = "viewer.meta";
+
+    private static final int INITIAL_CLASS_COUNTS_SIZE = 1024;
+
+    /**
+     * One per core, but every indexing thread fills object info shard of its own, so no more than half of heap goes
+     * to the shards.
+     */
+    public static final int DEFAULT_INDEXING_THREADS = (int) Math.max(1, Math.min(
+        Runtime.getRuntime().availableProcessors(),
+        Runtime.getRuntime().maxMemory() / 2 / ObjectInfoBinarySearchFileStorage.getShardHeapBytesSize()));
+
+    // each indexing thread adds up its objects before reporting them
+    private static final int INDEXED_OBJECTS_PROGRESS_STEP = 64 * 1024;
+
+    private static final PrimitiveType[] PRIMITIVE_TYPES = PrimitiveType.values();
+
+    private static final byte CLASS_TYPE_KIND = 0;
+    private static final byte OBJECT_ARRAY_TYPE_KIND = 1;
+    private static final byte PRIMITIVE_ARRAY_TYPE_KIND = 2;
+
+    // records closer than that are read together, as skipping a gap costs about as much as reading it
+    private static final int COALESCED_READ_MAX_GAP = 64 * 1024;
+
+    // smaller pages are decoded faster than tasks are handed to other threads
+    private static final int PARALLEL_DECODING_MIN_INSTANCES = 256;
+
+    private static final long DECODED_OBJECTS_CACHE_WEIGHT = 8 * 1024 * 1024;
+
+    // at least two, so that prefetching next page doesn't hold up the requested one
+    private static final int QUERY_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int QUERY_QUEUE_SIZE = 64;
+
+    // rough sizes of decoded objects in bytes; field names and type names are shared, so not counted
+    private static final int DECODED_OBJECT_WEIGHT = 48;
+    private static final int DECODED_FIELD_WEIGHT = 40;
+    private static final int DECODED_LIST_ELEMENT_WEIGHT = 8;
+    private static final int STRING_WEIGHT = 40;
+
+    private final HprofDumpReader dumpReader;
+
+    // only while loading
+    private LoadingProgress loadingProgress;
 
     // TODO not needed for viewing; move to RecordHandler
     // TODO move to file storage?
-    // TODO use class map from HprofParser?
-    private Map<Long, ClassProcessingInfo> classInfoByClassObjIdMap = new HashMap<>();
-    private Map<Long, List<ClassProcessingInfo>> classInfoByNameIdMap = new HashMap<>();
-    private Map<Long, List<ClassFieldProcessingInfo>> classFieldInfoByNameIdMap = new HashMap<>();
-    private Map<Long, InstancesCount> objectArraysCountByElementClassIdMap = new HashMap<>();
-    private Map<PrimitiveType, InstancesCount> primitiveArraysCountByTypeMap = new HashMap<>();
-
-    private Map<Long, List<String>> classFieldNamesByClassObjIdMap = new HashMap<>();
-    private Map<Long, String> classNamesByClassObjIdMap = new HashMap<>();
-    private Map<Long, Long> parentClassIdByChildIdMap = new HashMap<>();
-
-    private final TypeInstancesFileStorage classInstancesStorage = new TypeInstancesFileStorage();
-    private final TypeInstancesFileStorage objectArraysInstancesStorage = new TypeInstancesFileStorage();
-    private final TypeInstancesFileStorage primitiveArraysInstancesStorage = new TypeInstancesFileStorage();
-    private final ObjectInfoBinarySearchFileStorage objectInfoStorage = new ObjectInfoBinarySearchFileStorage();
+    private LongObjectHashMap<ClassProcessingInfo> classInfoByClassObjIdMap = new LongObjectHashMap<>();
+    private LongObjectHashMap<List<ClassProcessingInfo>> classInfoByNameIdMap = new LongObjectHashMap<>();
+    private LongObjectHashMap<List<ClassFieldProcessingInfo>> classFieldInfoByNameIdMap = new LongObjectHashMap<>();
+    private LongObjectHashMap<InstancesCount> objectArraysCountByElementClassIdMap = new LongObjectHashMap<>();
+    private long[] primitiveArraysCountsByType = new long[PRIMITIVE_TYPES.length];
+
+    private LongObjectHashMap<List<String>> classFieldNamesByClassObjIdMap = new LongObjectHashMap<>();
+    private LongObjectHashMap<BasicType[]> classFieldTypesByClassObjIdMap = new LongObjectHashMap<>();
+    private LongObjectHashMap<String> classNamesByClassObjIdMap = new LongObjectHashMap<>();
+    private LongLongHashMap parentClassIdByChildIdMap = new LongLongHashMap(); // 0 if no parent
+
+    // built from the three maps above once index is ready
+    private LongObjectHashMap<ClassLayout> classLayoutsByClassObjIdMap;
+
+    private TypeInstancesFileStorage classInstancesStorage;
+    private TypeInstancesFileStorage objectArraysInstancesStorage;
+    private TypeInstancesFileStorage primitiveArraysInstancesStorage;
+    private ObjectInfoBinarySearchFileStorage objectInfoStorage;
 
     private List<HeapDumpType> types;
 
+    // decoded instances and pages of array elements, so that going back and forth between objects doesn't decode
+    // them again; values are immutable
+    private final WeightedLruCache<DecodedObjectKey, Object> decodedObjectsCache =
+        new WeightedLruCache<>(DECODED_OBJECTS_CACHE_WEIGHT, HprofViewer::estimateDecodedObjectWeight);
+
+    // runs asynchronous queries and prefetches of next pages; threads are dropped when idle
+    private final ThreadPoolExecutor queryExecutor = createQueryExecutor();
+
+    // prefetches of next pages which are queued or running
+    private final ConcurrentHashMap<PageKey, PagePrefetch> pagePrefetches = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    private final PageReader<HeapDumpClassInstance> classInstancesPageReader =
+        (classId, offset, limit) -> readHeapDumpClassInstances(
+            classInstancesStorage.listInstancesIds(classId, offset, limit), null);
+
+    @SuppressWarnings("unchecked")
+    private final PageReader<HeapDumpObject> objectArrayElementsPageReader =
+        (arrayId, offset, limit) -> (List<HeapDumpObject>) decodedObjectsCache.get(
+            new DecodedObjectKey(arrayId, (int) offset, limit),
+            key -> readObjectArrayElements(arrayId, (int) offset, limit));
+
+    @SuppressWarnings("unchecked")
+    private final PageReader<String> primitiveArrayElementsPageReader =
+        (arrayId, offset, limit) -> (List<String>) decodedObjectsCache.get(
+            new DecodedObjectKey(arrayId, (int) offset, limit),
+            key -> readPrimitiveArrayElements(arrayId, (int) offset, limit));
+
     public HprofViewer(File hprofFile) throws IOException {
+        this(hprofFile, null);
+    }
+
+    /**
+     * @throws CancellationException if loading is cancelled with given token
+     */
+    public HprofViewer(File hprofFile, LoadingProgressListener progressListener,
+                       CancellationToken cancellationToken) throws IOException {
+        this(hprofFile, null, DEFAULT_INDEXING_THREADS, progressListener, cancellationToken);
+    }
 
-        parser = new HprofParser();
+    /**
+     * @param indexCacheDirectory where to keep index of the dump; see {@link IndexDirectory#forDump(File, File)}
+     */
+    public HprofViewer(File hprofFile, File indexCacheDirectory) throws IOException {
+        this(hprofFile, indexCacheDirectory, DEFAULT_INDEXING_THREADS);
+    }
+
+    /**
+     * @param indexCacheDirectory where to keep index of the dump; see {@link IndexDirectory#forDump(File, File)}
+     * @param indexingThreads     number of threads indexing heap dump segments if index has to be built; if 1,
+     *                            dump is indexed in the calling thread
+     */
+    public HprofViewer(File hprofFile, File indexCacheDirectory, int indexingThreads) throws IOException {
+        this(hprofFile, indexCacheDirectory, indexingThreads, (phase, phaseBytesDone, phaseBytesSize, objectsIndexed) -> {
+        }, new CancellationToken());
+    }
+
+    /**
+     * @param indexCacheDirectory where to keep index of the dump; see {@link IndexDirectory#forDump(File, File)}
+     * @param indexingThreads     number of threads indexing heap dump segments if index has to be built; if 1,
+     *                            dump is indexed in the calling thread
+     * @throws CancellationException if loading is cancelled with given token; files written so far are deleted
+     */
+    public HprofViewer(File hprofFile, File indexCacheDirectory, int indexingThreads,
+                       LoadingProgressListener progressListener, CancellationToken cancellationToken)
+        throws IOException {
+        loadingProgress = new LoadingProgress(progressListener, cancellationToken);
+
+        dumpReader = new HprofDumpReader(hprofFile);
+
+        try {
+            loadOrBuildIndex(hprofFile, IndexDirectory.forDump(hprofFile, indexCacheDirectory), indexingThreads);
+        } catch (Throwable t) {
+            dumpReader.close();
+            queryExecutor.shutdown();
+            throw t;
+        }
+
+        buildClassLayouts();
+        loadingProgress = null;
+    }
 
-        parser.parse(hprofFile, new MainRecordHandler(),
-                     new ParseOptions(true, true, true));
+    private void loadOrBuildIndex(File hprofFile, IndexDirectory indexDirectory, int indexingThreads)
+        throws IOException {
+        if (indexDirectory.isValid()) {
+            loadingProgress.startPhase(LoadingPhase.LOADING_INDEX, 0);
+
+            try {
+                loadIndex(indexDirectory);
+                indexDirectory.markUsed();
+                return;
+            } catch (IOException | RuntimeException e) {
+                // broken index; closing storages opened so far before their files are deleted, and rebuilding it
+                discardIndex(indexDirectory);
+            }
+        }
+
+        buildIndex(hprofFile, indexDirectory, indexingThreads);
+    }
+
+    /**
+     * Stops query threads, drops pending prefetches and cached objects and closes dump and index files; index files
+     * are kept for reopening the dump. Queries which are pending or running fail, and so do later ones. Mapped files
+     * are unmapped once garbage collected, as JDK has no public way to unmap them right away.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        queryExecutor.shutdownNow();
+        pagePrefetches.clear();
+        decodedObjectsCache.clear();
+
+        classInstancesStorage.close();
+        objectArraysInstancesStorage.close();
+        primitiveArraysInstancesStorage.close();
+        objectInfoStorage.close();
+        dumpReader.close();
+    }
+
+    /**
+     * Flattens fields of every class across its hierarchy once, so that instances are decoded without walking it.
+     * Per-class field tables are not needed afterwards.
+     */
+    private void buildClassLayouts() {
+        classLayoutsByClassObjIdMap = new LongObjectHashMap<>(classFieldNamesByClassObjIdMap.size());
+
+        for (long classId : classFieldNamesByClassObjIdMap.keys()) {
+            List<String> fieldNames = new ArrayList<>();
+            List<BasicType> fieldTypes = new ArrayList<>();
+
+            long currentClassId = classId;
+
+            // traversing class hierarchy; values of the class itself go first
+            while (currentClassId != 0) {
+                List<String> currentFieldNames = classFieldNamesByClassObjIdMap.get(currentClassId);
+                BasicType[] currentFieldTypes = classFieldTypesByClassObjIdMap.get(currentClassId);
+
+                if (currentFieldNames != null && currentFieldTypes != null) {
+                    fieldNames.addAll(currentFieldNames);
+                    fieldTypes.addAll(Arrays.asList(currentFieldTypes));
+                }
+
+                currentClassId = parentClassIdByChildIdMap.get(currentClassId, 0);
+            }
+
+            classLayoutsByClassObjIdMap.put(classId, new ClassLayout(fieldNames.toArray(new String[0]),
+                                                                     fieldTypes.toArray(new BasicType[0]),
+                                                                     dumpReader.getIdSize()));
+        }
+
+        classFieldNamesByClassObjIdMap = null;
+        classFieldTypesByClassObjIdMap = null;
+        parentClassIdByChildIdMap = null;
+    }
+
+    private void buildIndex(File hprofFile, IndexDirectory indexDirectory, int indexingThreads) throws IOException {
+        indexDirectory.prepareForWriting();
+
+        try {
+            writeIndex(hprofFile, indexDirectory, indexingThreads);
+        } catch (Throwable t) {
+            discardIndex(indexDirectory);
+            throw t;
+        }
+    }
+
+    /**
+     * Deletes everything written by failed or cancelled indexing, so that no index or temporary files are left.
+     */
+    private void discardIndex(IndexDirectory indexDirectory) {
+        for (TypeInstancesFileStorage storage : Arrays.asList(
+            classInstancesStorage, objectArraysInstancesStorage, primitiveArraysInstancesStorage)) {
+            if (storage != null) {
+                storage.discard();
+            }
+        }
+
+        if (objectInfoStorage != null) {
+            objectInfoStorage.discard();
+        }
+
+        indexDirectory.discard();
+    }
+
+    private void writeIndex(File hprofFile, IndexDirectory indexDirectory, int indexingThreads) throws IOException {
+        // might be partially filled (or already dropped) by failed index loading
+        classInfoByClassObjIdMap = new LongObjectHashMap<>();
+        classInfoByNameIdMap = new LongObjectHashMap<>();
+        classFieldInfoByNameIdMap = new LongObjectHashMap<>();
+        objectArraysCountByElementClassIdMap = new LongObjectHashMap<>();
+        primitiveArraysCountsByType = new long[PRIMITIVE_TYPES.length];
+
+        classFieldNamesByClassObjIdMap = new LongObjectHashMap<>();
+        classFieldTypesByClassObjIdMap = new LongObjectHashMap<>();
+        classNamesByClassObjIdMap = new LongObjectHashMap<>();
+        parentClassIdByChildIdMap = new LongLongHashMap();
+
+        classInstancesStorage =
+            new TypeInstancesFileStorage(indexDirectory.getFile(CLASS_INSTANCES_FILE_NAME));
+        objectArraysInstancesStorage =
+            new TypeInstancesFileStorage(indexDirectory.getFile(OBJECT_ARRAYS_INSTANCES_FILE_NAME));
+        primitiveArraysInstancesStorage =
+            new TypeInstancesFileStorage(indexDirectory.getFile(PRIMITIVE_ARRAYS_INSTANCES_FILE_NAME));
+        objectInfoStorage = new ObjectInfoBinarySearchFileStorage(indexDirectory.getFile(OBJECT_INFO_FILE_NAME));
+
+        indexDump(hprofFile, indexingThreads);
+
+        loadingProgress.startPhase(LoadingPhase.WRITING_INDEX, 0);
 
         // TODO merge into one?
         classInstancesStorage.finishRegistering();
+        loadingProgress.checkCancelled();
         objectArraysInstancesStorage.finishRegistering();
+        loadingProgress.checkCancelled();
         primitiveArraysInstancesStorage.finishRegistering();
+        loadingProgress.checkCancelled();
 
         objectInfoStorage.finishRegistering();
+        loadingProgress.checkCancelled();
 
         types = new ArrayList<>(classInfoByClassObjIdMap.size()
                                     + objectArraysCountByElementClassIdMap.size()
-                                    + primitiveArraysCountByTypeMap.size());
+                                    + primitiveArraysCountsByType.length);
 
         // TODO do in parallel?
         classInfoByClassObjIdMap.forEach((classId, classProcessingInfo) -> {
@@ -345,288 +694,1221 @@ public class HprofViewer {
             types.add(new HeapDumpObjectArray(elementClassName + "[]", instancesCount.count, elementClassId));
         });
 
-        primitiveArraysCountByTypeMap.forEach(
-            (primitiveType, instancesCount) -> types.add(
-                new HeapDumpPrimitiveArray(primitiveType.toString().toLowerCase() + "[]",
-                                           instancesCount.count, primitiveType)));
+        for (PrimitiveType primitiveType : PRIMITIVE_TYPES) {
+            long instancesCount = primitiveArraysCountsByType[primitiveType.ordinal()];
+
+            if (instancesCount > 0) {
+                types.add(new HeapDumpPrimitiveArray(primitiveType.toString().toLowerCase() + "[]",
+                                                     instancesCount, primitiveType));
+            }
+        }
+
+        // ties are broken by name, so that order of types is the same whatever order shards were merged in
+        types.sort(Comparator.comparing(HeapDumpType::getInstancesCount, Comparator.reverseOrder())
+                       .thenComparing(HeapDumpType::getName));
+
+        classInfoByClassObjIdMap = null;
+        classInfoByNameIdMap = null;
+        classFieldInfoByNameIdMap = null;
+        objectArraysCountByElementClassIdMap = null;
+        primitiveArraysCountsByType = null;
+
+        try (DataOutputStream metadata = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(indexDirectory.getFile(VIEWER_METADATA_FILE_NAME))))) {
+            writeMetadata(metadata);
+        }
+
+        indexDirectory.commit();
+    }
+
+    /**
+     * Indexes dump with {@link HprofIndexScanner}. If several threads are used, each of them indexes heap dump
+     * segments into storage shards of its own; shards are merged into main storages afterwards.
+     */
+    private void indexDump(File hprofFile, int indexingThreads) throws IOException {
+        try (HprofIndexScanner scanner = new HprofIndexScanner(hprofFile, loadingProgress::bytesScanned)) {
+            HprofIndexHandler recordHandler = new HprofIndexHandler() {
+                @Override
+                public boolean isStringNeeded(long id) {
+                    return classInfoByNameIdMap.containsKey(id) || classFieldInfoByNameIdMap.containsKey(id);
+                }
+
+                @Override
+                public void stringInUTF8(long id, String data) {
+                    registerString(id, data);
+                }
+
+                @Override
+                public void loadClass(long classObjId, long classNameStringId) {
+                    registerLoadedClass(classObjId, classNameStringId);
+                }
+            };
+
+            loadingProgress.startPhase(LoadingPhase.SCANNING_RECORDS, hprofFile.length());
+
+            List<HeapDumpSegment> segments = scanner.scanRecords(recordHandler);
+
+            List<SegmentRecordHandler> segmentHandlers = new ArrayList<>();
+
+            int threads = Math.max(1, Math.min(indexingThreads, segments.size()));
+
+            loadingProgress.startPhase(LoadingPhase.INDEXING_OBJECTS,
+                                       segments.stream().mapToLong(HeapDumpSegment::getBodyLength).sum());
+
+            try {
+                for (int i = 0; i < threads; i++) {
+                    segmentHandlers.add(new SegmentRecordHandler(threads > 1));
+                }
+
+                scanner.indexSegments(segments, segmentHandlers);
+
+                if (threads > 1) {
+                    loadingProgress.startPhase(LoadingPhase.MERGING_SHARDS, 0);
+                }
+
+                for (SegmentRecordHandler segmentHandler : segmentHandlers) {
+                    mergeSegmentRecordHandler(segmentHandler);
+                    loadingProgress.checkCancelled();
+                }
+
+                if (threads > 1) {
+                    mergeInstancesShards(segmentHandlers);
+                }
+            } catch (Throwable t) {
+                for (SegmentRecordHandler segmentHandler : segmentHandlers) {
+                    segmentHandler.discardShards();
+                }
+                throw t;
+            }
+
+            loadingProgress.startPhase(LoadingPhase.SCANNING_STRINGS, hprofFile.length());
+
+            // strings are needed only after all class loads/dumps are known
+            scanner.scanStrings(recordHandler);
+        }
+    }
+
+    private void mergeSegmentRecordHandler(SegmentRecordHandler segmentHandler) throws IOException {
+        ClassDictionary classDictionary = segmentHandler.classDictionary;
+
+        for (int classOrdinal = 0; classOrdinal < classDictionary.size(); classOrdinal++) {
+            long classObjId = classDictionary.getClassId(classOrdinal);
+
+            if (segmentHandler.classInstancesCounts[classOrdinal] > 0) {
+                classInfoByClassObjIdMap.computeIfAbsent(classObjId, ClassProcessingInfo::new).count +=
+                    segmentHandler.classInstancesCounts[classOrdinal];
+            }
+
+            if (segmentHandler.objectArraysCounts[classOrdinal] > 0) {
+                objectArraysCountByElementClassIdMap.computeIfAbsent(classObjId, id -> new InstancesCount()).count +=
+                    segmentHandler.objectArraysCounts[classOrdinal];
+            }
+        }
+
+        for (int i = 0; i < primitiveArraysCountsByType.length; i++) {
+            primitiveArraysCountsByType[i] += segmentHandler.primitiveArraysCountsByType[i];
+        }
+
+        if (segmentHandler.sharded) {
+            // object infos are sorted by id anyway; instances are merged in dump order once all counts are merged
+            objectInfoStorage.mergeShard(segmentHandler.objectInfoStorage);
+        }
+
+        loadingProgress.objectsIndexed(segmentHandler.unreportedObjectsCount);
+        segmentHandler.unreportedObjectsCount = 0;
+    }
+
+    /**
+     * Merges instances shards of all handlers at once, so that instances of every type are listed in dump order
+     * however segments were shared between indexing threads.
+     */
+    private void mergeInstancesShards(List<SegmentRecordHandler> segmentHandlers) throws IOException {
+        classInstancesStorage.mergeShards(segmentHandlers.stream()
+                                              .map(handler -> handler.classInstancesStorage)
+                                              .collect(Collectors.toList()));
+        loadingProgress.checkCancelled();
+        objectArraysInstancesStorage.mergeShards(segmentHandlers.stream()
+                                                     .map(handler -> handler.objectArraysInstancesStorage)
+                                                     .collect(Collectors.toList()));
+        loadingProgress.checkCancelled();
+        primitiveArraysInstancesStorage.mergeShards(segmentHandlers.stream()
+                                                        .map(handler -> handler.primitiveArraysInstancesStorage)
+                                                        .collect(Collectors.toList()));
+        loadingProgress.checkCancelled();
+    }
+
+    private void loadIndex(IndexDirectory indexDirectory) throws IOException {
+        try (DataInputStream metadata = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(indexDirectory.getFile(VIEWER_METADATA_FILE_NAME))))) {
+            int classesCount = metadata.readInt();
+
+            classNamesByClassObjIdMap = new LongObjectHashMap<>(classesCount);
+            for (int i = 0; i < classesCount; i++) {
+                long classId = metadata.readLong();
+                classNamesByClassObjIdMap.put(classId, metadata.readBoolean() ? metadata.readUTF() : null);
+            }
+
+            int fieldsOwnersCount = metadata.readInt();
+            classFieldNamesByClassObjIdMap = new LongObjectHashMap<>(fieldsOwnersCount);
+            classFieldTypesByClassObjIdMap = new LongObjectHashMap<>(fieldsOwnersCount);
+            for (int i = 0; i < fieldsOwnersCount; i++) {
+                long classId = metadata.readLong();
+                int fieldsCount = metadata.readInt();
+
+                List<String> fieldNames = new ArrayList<>(fieldsCount);
+                BasicType[] fieldTypes = new BasicType[fieldsCount];
 
-        types.sort(Comparator.comparing(HeapDumpType::getInstancesCount, Comparator.reverseOrder()));
+                for (int j = 0; j < fieldsCount; j++) {
+                    fieldNames.add(metadata.readUTF());
+                    fieldTypes[j] = BasicType.fromHprofCode(metadata.readByte());
+                }
+
+                classFieldNamesByClassObjIdMap.put(classId, fieldNames);
+                classFieldTypesByClassObjIdMap.put(classId, fieldTypes);
+            }
+
+            int parentsCount = metadata.readInt();
+            parentClassIdByChildIdMap = new LongLongHashMap(parentsCount);
+            for (int i = 0; i < parentsCount; i++) {
+                parentClassIdByChildIdMap.put(metadata.readLong(), metadata.readLong());
+            }
+
+            int typesCount = metadata.readInt();
+            types = new ArrayList<>(typesCount);
+            for (int i = 0; i < typesCount; i++) {
+                types.add(readType(metadata));
+            }
+
+            classInstancesStorage = TypeInstancesFileStorage.load(
+                indexDirectory.getFile(CLASS_INSTANCES_FILE_NAME), metadata);
+            objectArraysInstancesStorage = TypeInstancesFileStorage.load(
+                indexDirectory.getFile(OBJECT_ARRAYS_INSTANCES_FILE_NAME), metadata);
+            primitiveArraysInstancesStorage = TypeInstancesFileStorage.load(
+                indexDirectory.getFile(PRIMITIVE_ARRAYS_INSTANCES_FILE_NAME), metadata);
+            objectInfoStorage = ObjectInfoBinarySearchFileStorage.load(
+                indexDirectory.getFile(OBJECT_INFO_FILE_NAME), metadata, true);
+        }
 
         classInfoByClassObjIdMap = null;
         classInfoByNameIdMap = null;
         classFieldInfoByNameIdMap = null;
         objectArraysCountByElementClassIdMap = null;
-        primitiveArraysCountByTypeMap = null;
+        primitiveArraysCountsByType = null;
+    }
+
+    private void writeMetadata(DataOutput metadata) throws IOException {
+        metadata.writeInt(classNamesByClassObjIdMap.size());
+        for (long classId : classNamesByClassObjIdMap.keys()) {
+            String className = classNamesByClassObjIdMap.get(classId);
+
+            metadata.writeLong(classId);
+            metadata.writeBoolean(className != null);
+            if (className != null) {
+                metadata.writeUTF(className);
+            }
+        }
+
+        metadata.writeInt(classFieldNamesByClassObjIdMap.size());
+        for (long classId : classFieldNamesByClassObjIdMap.keys()) {
+            List<String> fieldNames = classFieldNamesByClassObjIdMap.get(classId);
+            BasicType[] fieldTypes = classFieldTypesByClassObjIdMap.get(classId);
+
+            metadata.writeLong(classId);
+            metadata.writeInt(fieldNames.size());
+
+            for (int i = 0; i < fieldNames.size(); i++) {
+                metadata.writeUTF(fieldNames.get(i));
+                metadata.writeByte(fieldTypes[i].getHprofCode());
+            }
+        }
+
+        metadata.writeInt(parentClassIdByChildIdMap.size());
+        for (long classId : parentClassIdByChildIdMap.keys()) {
+            metadata.writeLong(classId);
+            metadata.writeLong(parentClassIdByChildIdMap.get(classId, 0));
+        }
+
+        metadata.writeInt(types.size());
+        for (HeapDumpType type : types) {
+            writeType(metadata, type);
+        }
+
+        classInstancesStorage.writeMetadata(metadata);
+        objectArraysInstancesStorage.writeMetadata(metadata);
+        primitiveArraysInstancesStorage.writeMetadata(metadata);
+        objectInfoStorage.writeMetadata(metadata);
+    }
+
+    private static void writeType(DataOutput metadata, HeapDumpType type) throws IOException {
+        if (type instanceof HeapDumpClass) {
+            metadata.writeByte(CLASS_TYPE_KIND);
+            metadata.writeUTF(type.getName());
+            metadata.writeLong(type.getInstancesCount());
+            metadata.writeLong(((HeapDumpClass) type).getClassId());
+        } else if (type instanceof HeapDumpObjectArray) {
+            metadata.writeByte(OBJECT_ARRAY_TYPE_KIND);
+            metadata.writeUTF(type.getName());
+            metadata.writeLong(type.getInstancesCount());
+            metadata.writeLong(((HeapDumpObjectArray) type).getElementClassId());
+        } else { // HeapDumpPrimitiveArray
+            metadata.writeByte(PRIMITIVE_ARRAY_TYPE_KIND);
+            metadata.writeUTF(type.getName());
+            metadata.writeLong(type.getInstancesCount());
+            metadata.writeInt(((HeapDumpPrimitiveArray) type).getPrimitiveType().ordinal());
+        }
+    }
+
+    private static HeapDumpType readType(DataInput metadata) throws IOException {
+        byte kind = metadata.readByte();
+        String name = metadata.readUTF();
+        long instancesCount = metadata.readLong();
+
+        switch (kind) {
+            case CLASS_TYPE_KIND:
+                return new HeapDumpClass(name, instancesCount, metadata.readLong());
+            case OBJECT_ARRAY_TYPE_KIND:
+                return new HeapDumpObjectArray(name, instancesCount, metadata.readLong());
+            case PRIMITIVE_ARRAY_TYPE_KIND:
+                return new HeapDumpPrimitiveArray(name, instancesCount,
+                                                  PrimitiveType.values()[metadata.readInt()]);
+            default:
+                throw new IOException("unexpected type kind: " + kind);
+        }
     }
 
     public List<HeapDumpType> listTypes() {
-        return types; // TODO make read only list
+        return Collections.unmodifiableList(types);
     }
 
-    public List<HeapDumpClassInstance> listClassInstances(long classId, int offset, int limit) throws IOException {
-        return classInstancesStorage.listInstancesIds(classId, offset, limit).stream()
-            .map(this::readHeapDumpClassInstance)
-            .collect(Collectors.toList());
+    private static ThreadPoolExecutor createQueryExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            QUERY_THREADS, QUERY_THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUERY_QUEUE_SIZE),
+            runnable -> {
+                Thread thread = new Thread(runnable, "hprof-viewer-query");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Serving a full page of instances or array elements (synchronously or not) starts reading the next page of the
+     * same size in background, so that it is taken from cache when requested.
+     */
+    public List<HeapDumpClassInstance> listClassInstances(long classId, long offset, int limit) throws IOException {
+        return readPage(classInstancesPageReader, classId, offset, limit);
+    }
+
+    /**
+     * Asynchronous {@link #listClassInstances(long, long, int)}; queries are run by a few background threads, with
+     * a bounded queue of pending ones.
+     *
+     * @return page of instances; completed exceptionally if query failed or too many queries are pending
+     */
+    public CompletableFuture<List<HeapDumpClassInstance>> listClassInstancesAsync(long classId, long offset,
+                                                                                  int limit) {
+        return supplyAsync(() -> listClassInstances(classId, offset, limit));
     }
 
-    public List<HeapDumpArrayInstance> listObjectArrayInstances(long elementClassId, int offset, int limit)
+    public List<HeapDumpArrayInstance> listObjectArrayInstances(long elementClassId, long offset, int limit)
         throws IOException {
-        return objectArraysInstancesStorage.listInstancesIds(elementClassId, offset, limit).stream()
-            .map(HeapDumpObjectArrayInstance::new)
+        checkNotClosed();
+
+        long[] arraysIds = objectArraysInstancesStorage.listInstancesIds(elementClassId, offset, limit);
+        ObjectInfo[] arraysObjectInfos = objectInfoStorage.getObjectInfos(arraysIds);
+
+        return IntStream.range(0, arraysIds.length)
+            .mapToObj(i -> new HeapDumpObjectArrayInstance(arraysIds[i], readArrayLength(arraysObjectInfos[i])))
             .collect(Collectors.toList());
     }
 
-    public List<HeapDumpArrayInstance> listPrimitiveArrayInstances(PrimitiveType type, int offset, int limit)
+    public List<HeapDumpArrayInstance> listPrimitiveArrayInstances(PrimitiveType type, long offset, int limit)
         throws IOException {
-        return primitiveArraysInstancesStorage.listInstancesIds(type.ordinal(), offset, limit).stream()
-            .map(HeapDumpPrimitiveArrayInstance::new)
+        checkNotClosed();
+
+        long[] arraysIds = primitiveArraysInstancesStorage.listInstancesIds(type.ordinal(), offset, limit);
+        ObjectInfo[] arraysObjectInfos = objectInfoStorage.getObjectInfos(arraysIds);
+
+        return IntStream.range(0, arraysIds.length)
+            .mapToObj(i -> new HeapDumpPrimitiveArrayInstance(arraysIds[i], readArrayLength(arraysObjectInfos[i])))
             .collect(Collectors.toList());
     }
 
+    /**
+     * Asynchronous {@link #listObjectArrayInstances(long, long, int)}; only lengths of arrays are read, so next page is
+     * not prefetched.
+     */
+    public CompletableFuture<List<HeapDumpArrayInstance>> listObjectArrayInstancesAsync(long elementClassId,
+                                                                                        long offset, int limit) {
+        return supplyAsync(() -> listObjectArrayInstances(elementClassId, offset, limit));
+    }
+
+    /**
+     * Asynchronous {@link #listPrimitiveArrayInstances(PrimitiveType, long, int)}; only lengths of arrays are read, so
+     * next page is not prefetched.
+     */
+    public CompletableFuture<List<HeapDumpArrayInstance>> listPrimitiveArrayInstancesAsync(PrimitiveType type,
+                                                                                           long offset, int limit) {
+        return supplyAsync(() -> listPrimitiveArrayInstances(type, offset, limit));
+    }
+
     public List<HeapDumpObject> listObjectArrayElements(long arrayId, int offset, int limit) {
-        List<HeapDumpObject> arrayElements = new ArrayList<>(limit);
-
-        RecordHandler recordHandler = new NullRecordHandler() {
-            @Override
-            public void objArrayDump(long objId, int stackTraceSerialNum, long elemClassObjId, long[] elems) {
-                for (long elemObjId : elems) {
-                    if (elemObjId == 0) { // null value
-                        arrayElements.add(null);
-                    } else if (classNamesByClassObjIdMap.containsKey(elemObjId)) {
-                        String className = classNamesByClassObjIdMap.get(elemObjId);
-                        arrayElements.add(new HeapDumpClassObject(elemObjId, className));
-                    } else {
-                        ObjectInfo objectInfo = objectInfoStorage.getObjectInfo(elemObjId);
-
-                        if (objectInfo.getType() == ObjectType.INSTANCE) {
-                            arrayElements.add(readHeapDumpClassInstance(elemObjId));
-                        } else if (objectInfo.getType() == ObjectType.OBJECT_ARRAY) {
-                            arrayElements.add(new HeapDumpObjectArrayInstance(elemObjId));
-                        } else { // PRIMITIVE_ARRAY
-                            arrayElements.add(new HeapDumpPrimitiveArrayInstance(elemObjId));
-                        }
-                    }
-                }
-            }
-        };
+        return readPageUnchecked(objectArrayElementsPageReader, arrayId, offset, limit);
+    }
+
+    public CompletableFuture<List<HeapDumpObject>> listObjectArrayElementsAsync(long arrayId, int offset, int limit) {
+        return supplyAsync(() -> listObjectArrayElements(arrayId, offset, limit));
+    }
 
+    private List<HeapDumpObject> readObjectArrayElements(long arrayId, int offset, int limit) {
         long fileOffset = objectInfoStorage.getObjectInfo(arrayId).getDumpFileOffset();
 
+        long[] elems;
+
         try {
-            parser.readObjArrayDumpAtOffset(fileOffset, recordHandler, offset, limit);
+            elems = dumpReader.readObjectArrayElements(fileOffset, offset, limit);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        return arrayElements;
-    }
+        ObjectInfo[] elemObjectInfos = getDumpedObjectInfos(elems);
 
-    public List<String> listPrimitiveArrayElements(long arrayId, int offset, int limit) {
-        List<String> arrayElements = new ArrayList<>(limit);
+        // instances among elements are decoded together
+        long[] elemInstancesIds = new long[elems.length];
+        ObjectInfo[] elemInstancesObjectInfos = new ObjectInfo[elems.length];
+        int elemInstancesCount = 0;
 
-        RecordHandler recordHandler = new NullRecordHandler() {
-            @Override
-            public void primArrayDump(long objId, int stackTraceSerialNum, byte elemType, Value<?>[] elems) {
-                for (Value value : elems) {
-                    arrayElements.add(value.value.toString());
+        for (int i = 0; i < elems.length; i++) {
+            if (elemObjectInfos[i] != null && elemObjectInfos[i].getType() == ObjectType.INSTANCE) {
+                elemInstancesIds[elemInstancesCount] = elems[i];
+                elemInstancesObjectInfos[elemInstancesCount] = elemObjectInfos[i];
+                elemInstancesCount++;
+            }
+        }
+
+        Iterator<HeapDumpClassInstance> elemInstances =
+            readHeapDumpClassInstances(Arrays.copyOf(elemInstancesIds, elemInstancesCount),
+                                       Arrays.copyOf(elemInstancesObjectInfos, elemInstancesCount)).iterator();
+
+        List<HeapDumpObject> arrayElements = new ArrayList<>(elems.length);
+
+        for (int i = 0; i < elems.length; i++) {
+            long elemObjId = elems[i];
+
+            if (elemObjId == 0) { // null value
+                arrayElements.add(null);
+            } else if (classNamesByClassObjIdMap.containsKey(elemObjId)) {
+                String className = classNamesByClassObjIdMap.get(elemObjId);
+                arrayElements.add(new HeapDumpClassObject(elemObjId, className));
+            } else {
+                ObjectInfo objectInfo = elemObjectInfos[i];
+
+                if (objectInfo.getType() == ObjectType.INSTANCE) {
+                    arrayElements.add(elemInstances.next());
+                } else if (objectInfo.getType() == ObjectType.OBJECT_ARRAY) {
+                    arrayElements.add(new HeapDumpObjectArrayInstance(elemObjId, readArrayLength(objectInfo)));
+                } else { // PRIMITIVE_ARRAY
+                    arrayElements.add(new HeapDumpPrimitiveArrayInstance(elemObjId, readArrayLength(objectInfo)));
                 }
             }
-        };
+        }
 
+        return Collections.unmodifiableList(arrayElements);
+    }
+
+    public List<String> listPrimitiveArrayElements(long arrayId, int offset, int limit) {
+        return readPageUnchecked(primitiveArrayElementsPageReader, arrayId, offset, limit);
+    }
+
+    public CompletableFuture<List<String>> listPrimitiveArrayElementsAsync(long arrayId, int offset, int limit) {
+        return supplyAsync(() -> listPrimitiveArrayElements(arrayId, offset, limit));
+    }
+
+    private int readArrayLength(ObjectInfo arrayObjectInfo) {
+        return dumpReader.readArrayLength(arrayObjectInfo.getDumpFileOffset());
+    }
+
+    private List<String> readPrimitiveArrayElements(long arrayId, int offset, int limit) {
         long fileOffset = objectInfoStorage.getObjectInfo(arrayId).getDumpFileOffset();
 
         try {
-            parser.readPrimArrayDumpAtOffset(fileOffset, recordHandler, offset, limit);
+            return Collections.unmodifiableList(dumpReader.readPrimitiveArrayElements(fileOffset, offset, limit));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-
-        return arrayElements;
     }
 
     public HeapDumpClassInstance showClassInstance(long instanceId) {
+        checkNotClosed();
+
         return readHeapDumpClassInstance(instanceId);
     }
 
-    private HeapDumpClassInstance readHeapDumpClassInstance(long instanceId) {
-        List<HeapDumpClassInstanceField> instanceFields = new ArrayList<>();
-        String[] className = new String[1];
-
-        RecordHandler recordHandler = new NullRecordHandler() {
-            @Override
-            public void instanceDump(long objId, int stackTraceSerialNum, long classObjId,
-                                     Value<?>[] instanceFieldValues) {
-                className[0] = classNamesByClassObjIdMap.get(classObjId);
-
-                List<String> fieldNames = getFieldNames(classObjId);
-
-                for (int i = 0; i < fieldNames.size(); i++) {
-                    Value value = instanceFieldValues[i];
-
-                    HeapDumpClassInstanceField field;
-
-                    if (value.type == Type.OBJ) {
-                        long valueObjectId = (long) value.value;
-
-                        if (valueObjectId == 0) { // null value
-                            field = new HeapDumpClassInstanceClassInstanceField(fieldNames.get(i),
-                                                                         0,
-                                                                         // TODO get type info from class dump?
-                                                                         null);
-                        } else if (classNamesByClassObjIdMap.containsKey(valueObjectId)) {
-                            String className = classNamesByClassObjIdMap.get(valueObjectId);
-                            field = new HeapDumpClassInstanceClassField(fieldNames.get(i),
-                                                                         valueObjectId,
-                                                                         "Class<" + className + ">");
-                        } else {
-                            ObjectInfo objectInfo = objectInfoStorage.getObjectInfo(valueObjectId);
-
-                            String typeName;
-
-                            if (objectInfo.getType() == ObjectType.INSTANCE) {
-                                typeName = classNamesByClassObjIdMap.get(objectInfo.getClassId());
-                                field = new HeapDumpClassInstanceClassInstanceField(fieldNames.get(i),
-                                                                                    valueObjectId,
-                                                                                    typeName);
-                            } else if (objectInfo.getType() == ObjectType.OBJECT_ARRAY) {
-                                if (classNamesByClassObjIdMap.containsKey(objectInfo.getClassId())) {
-                                    // TODO remove copy paste
-                                    String className = classNamesByClassObjIdMap.get(objectInfo.getClassId());
-                                    typeName = "Class<" + className + ">[]";
-                                } else {
-                                    typeName = classNamesByClassObjIdMap.get(objectInfo.getClassId()) + "[]";
-                                }
-                                field = new HeapDumpClassInstanceObjectArrayField(fieldNames.get(i),
-                                                                                  valueObjectId,
-                                                                                  typeName);
-                            } else { // PRIMITIVE_ARRAY
-                                typeName = objectInfo.getPrimitiveType().toString().toLowerCase() + "[]";
-                                field = new HeapDumpClassInstancePrimitiveArrayField(fieldNames.get(i),
-                                                                                    valueObjectId,
-                                                                                    typeName);
-                            }
-                        }
-                    } else { // all primitive values
-                        field = new HeapDumpClassInstancePrimitiveField(fieldNames.get(i), value.value.toString());
-                    }
-
-                    instanceFields.add(field);
+    public CompletableFuture<HeapDumpClassInstance> showClassInstanceAsync(long instanceId) {
+        return supplyAsync(() -> showClassInstance(instanceId));
+    }
+
+    /**
+     * @return object or primitive array with its length; elements are not read
+     */
+    public HeapDumpArrayInstance showArrayInstance(long arrayId) {
+        checkNotClosed();
+
+        ObjectInfo objectInfo = objectInfoStorage.getObjectInfo(arrayId);
+
+        if (objectInfo.getType() == ObjectType.OBJECT_ARRAY) {
+            return new HeapDumpObjectArrayInstance(arrayId, readArrayLength(objectInfo));
+        } else {
+            return new HeapDumpPrimitiveArrayInstance(arrayId, readArrayLength(objectInfo));
+        }
+    }
+
+    public CompletableFuture<HeapDumpArrayInstance> showArrayInstanceAsync(long arrayId) {
+        return supplyAsync(() -> showArrayInstance(arrayId));
+    }
+
+    /**
+     * Caps memory taken by decoded instances and pages of array elements, which are kept so that objects viewed again
+     * (e.g. when going back in history of object viewer) are not decoded again.
+     *
+     * @param maxWeight estimated size of cached objects in bytes
+     */
+    public void setDecodedObjectsCacheMaxWeight(long maxWeight) {
+        decodedObjectsCache.setMaxWeight(maxWeight);
+    }
+
+    /**
+     * @return counters of cache of decoded instances and array pages
+     */
+    public WeightedLruCache.Stats getDecodedObjectsCacheStats() {
+        return decodedObjectsCache.getStats();
+    }
+
+    /**
+     * Reads a page, waiting for its prefetch if there is one (or doing it right away if it hasn't started yet), and
+     * starts prefetch of the next page if this one is full.
+     */
+    private <T> List<T> readPage(PageReader<T> pageReader, long ownerId, long offset, int limit) throws IOException {
+        checkNotClosed();
+
+        PageKey pageKey = new PageKey(pageReader, ownerId, offset, limit);
+
+        PagePrefetch prefetch = pagePrefetches.get(pageKey);
+
+        if (prefetch != null) {
+            prefetch.run();
+        }
+
+        List<T> page = pageReader.read(ownerId, offset, limit);
+
+        if (page.size() == limit && limit > 0) {
+            prefetchPage(new PageKey(pageReader, ownerId, offset + limit, limit));
+        }
+
+        return page;
+    }
+
+    private <T> List<T> readPageUnchecked(PageReader<T> pageReader, long ownerId, long offset, int limit) {
+        try {
+            return readPage(pageReader, ownerId, offset, limit);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("viewer is closed");
+        }
+    }
+
+    private void prefetchPage(PageKey pageKey) {
+        PagePrefetch prefetch = new PagePrefetch(pageKey);
+
+        if (pagePrefetches.putIfAbsent(pageKey, prefetch) != null) {
+            return;
+        }
+
+        try {
+            queryExecutor.execute(prefetch);
+        } catch (RejectedExecutionException e) {
+            // too busy; page is read when requested
+            pagePrefetches.remove(pageKey, prefetch);
+        }
+    }
+
+    /**
+     * Runs query by query executor; query, which future is cancelled before it starts, is skipped.
+     */
+    private <T> CompletableFuture<T> supplyAsync(PageSupplier<T> pageSupplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("viewer is closed"));
+            return future;
+        }
+
+        try {
+            queryExecutor.execute(() -> {
+                if (future.isDone()) {
+                    return; // cancelled while queued
                 }
+
+                try {
+                    future.complete(pageSupplier.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    private HeapDumpClassInstance readHeapDumpClassInstance(long instanceId) {
+        return (HeapDumpClassInstance) decodedObjectsCache.get(new DecodedObjectKey(instanceId),
+                                                               key -> decodeHeapDumpClassInstance(instanceId));
+    }
+
+    private HeapDumpClassInstance decodeHeapDumpClassInstance(long instanceId) {
+        ObjectInfo objectInfo = objectInfoStorage.getObjectInfo(instanceId);
+        ClassLayout classLayout = classLayoutsByClassObjIdMap.get(objectInfo.getClassId());
+
+        if (classLayout == null) { // no class dump
+            return createHeapDumpClassInstance(instanceId, objectInfo, null, null, null, null, 0);
+        }
+
+        ByteBuffer fieldValues = readInstanceFieldValues(objectInfo, classLayout);
+
+        // referenced objects are looked up at once; 0 for primitive fields
+        long[] fieldObjIds = new long[classLayout.getFieldsCount()];
+        readFieldObjIds(classLayout, fieldValues, fieldObjIds, 0);
+
+        return createHeapDumpClassInstance(instanceId, objectInfo, classLayout, fieldValues,
+                                           fieldObjIds, getDumpedObjectInfos(fieldObjIds), 0);
+    }
+
+    /**
+     * Reads a page of instances. Instances which are not cached are read in order of their file offsets, with reads
+     * of records lying close to each other merged, so that a page costs a few sequential reads rather than one random
+     * read per instance; objects they reference are looked up at once; large pages are decoded in parallel.
+     *
+     * @param objectInfos infos of the instances if already looked up; null otherwise
+     * @return instances in order of given ids
+     */
+    private List<HeapDumpClassInstance> readHeapDumpClassInstances(long[] instancesIds, ObjectInfo[] objectInfos) {
+        HeapDumpClassInstance[] instances = new HeapDumpClassInstance[instancesIds.length];
+
+        int[] missingIdxs = new int[instancesIds.length];
+        int missingCount = 0;
+
+        for (int i = 0; i < instancesIds.length; i++) {
+            instances[i] = (HeapDumpClassInstance) decodedObjectsCache.getIfPresent(
+                new DecodedObjectKey(instancesIds[i]));
+
+            if (instances[i] == null) {
+                missingIdxs[missingCount++] = i;
             }
+        }
 
-            private List<String> getFieldNames(long classObjId) {
-                List<String> fieldNames = new ArrayList<>();
+        if (missingCount == 0) {
+            return Arrays.asList(instances);
+        }
 
-                Long currentClassId = classObjId;
+        long[] missingIds = new long[missingCount];
 
-                // traversing class hierarchy
-                while (currentClassId != null) {
-                    fieldNames.addAll(classFieldNamesByClassObjIdMap.getOrDefault(currentClassId,
-                                                                                  Collections.emptyList()));
-                    currentClassId = parentClassIdByChildIdMap.get(currentClassId);
-                }
+        for (int k = 0; k < missingCount; k++) {
+            missingIds[k] = instancesIds[missingIdxs[k]];
+        }
+
+        ObjectInfo[] missingObjectInfos;
+
+        if (objectInfos != null) {
+            missingObjectInfos = new ObjectInfo[missingCount];
+
+            for (int k = 0; k < missingCount; k++) {
+                missingObjectInfos[k] = objectInfos[missingIdxs[k]];
+            }
+        } else {
+            missingObjectInfos = objectInfoStorage.getObjectInfos(missingIds);
+        }
+
+        ClassLayout[] classLayouts = new ClassLayout[missingCount];
+        int[] fieldObjIdsFrom = new int[missingCount];
+        int fieldObjIdsCount = 0;
+
+        for (int k = 0; k < missingCount; k++) {
+            classLayouts[k] = classLayoutsByClassObjIdMap.get(missingObjectInfos[k].getClassId());
+            fieldObjIdsFrom[k] = fieldObjIdsCount;
+
+            if (classLayouts[k] != null) {
+                fieldObjIdsCount += classLayouts[k].getFieldsCount();
+            }
+        }
+
+        // pages are small, so boxing is cheaper than a primitive sort here
+        Integer[] fileOrder = new Integer[missingCount];
+
+        for (int k = 0; k < missingCount; k++) {
+            fileOrder[k] = k;
+        }
+
+        Arrays.sort(fileOrder, Comparator.comparingLong(k -> missingObjectInfos[k].getDumpFileOffset()));
+
+        prefetchInstanceRecords(fileOrder, missingObjectInfos, classLayouts);
 
-                return fieldNames;
+        ByteBuffer[] fieldValues = new ByteBuffer[missingCount];
+        long[] fieldObjIds = new long[fieldObjIdsCount];
+
+        for (int k : fileOrder) {
+            if (classLayouts[k] != null) {
+                fieldValues[k] = readInstanceFieldValues(missingObjectInfos[k], classLayouts[k]);
+                readFieldObjIds(classLayouts[k], fieldValues[k], fieldObjIds, fieldObjIdsFrom[k]);
             }
-        };
+        }
 
-        long fileOffset = objectInfoStorage.getObjectInfo(instanceId).getDumpFileOffset();
+        ObjectInfo[] fieldObjectInfos = getDumpedObjectInfos(fieldObjIds);
 
+        IntStream missingRange = IntStream.range(0, missingCount);
+
+        if (missingCount >= PARALLEL_DECODING_MIN_INSTANCES) {
+            missingRange = missingRange.parallel();
+        }
+
+        missingRange.forEach(k -> instances[missingIdxs[k]] = createHeapDumpClassInstance(
+            missingIds[k], missingObjectInfos[k], classLayouts[k], fieldValues[k],
+            fieldObjIds, fieldObjectInfos, fieldObjIdsFrom[k]));
+
+        for (int k = 0; k < missingCount; k++) {
+            decodedObjectsCache.put(new DecodedObjectKey(missingIds[k]), instances[missingIdxs[k]]);
+        }
+
+        return Arrays.asList(instances);
+    }
+
+    /**
+     * Reads instance records ahead of decoding, merging reads of records which are less than
+     * {@link #COALESCED_READ_MAX_GAP} bytes apart.
+     *
+     * @param fileOrder indexes of records in order of their file offsets
+     */
+    private void prefetchInstanceRecords(Integer[] fileOrder, ObjectInfo[] objectInfos, ClassLayout[] classLayouts) {
+        long runStart = -1;
+        long runEnd = -1;
+
+        for (int k : fileOrder) {
+            if (classLayouts[k] == null) {
+                continue;
+            }
+
+            long recordStart = objectInfos[k].getDumpFileOffset();
+            long recordEnd = recordStart + dumpReader.getInstanceRecordSize(classLayouts[k].getFieldValuesSize());
+
+            if (runStart != -1 && recordStart - runEnd > COALESCED_READ_MAX_GAP) {
+                dumpReader.prefetch(runStart, runEnd - runStart);
+                runStart = -1;
+            }
+
+            if (runStart == -1) {
+                runStart = recordStart;
+            }
+
+            runEnd = Math.max(runEnd, recordEnd);
+        }
+
+        if (runStart != -1) {
+            dumpReader.prefetch(runStart, runEnd - runStart);
+        }
+    }
+
+    private ByteBuffer readInstanceFieldValues(ObjectInfo objectInfo, ClassLayout classLayout) {
         try {
-            parser.readInstanceDumpAtOffset(fileOffset, recordHandler);
+            return dumpReader.readInstanceFieldValues(objectInfo.getDumpFileOffset(),
+                                                      classLayout.getFieldValuesSize());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
 
-        return new HeapDumpClassInstance(instanceId, className[0], instanceFields);
+    /**
+     * Puts ids referenced by object fields at their field indexes starting from given position; primitive fields are
+     * left 0.
+     */
+    private void readFieldObjIds(ClassLayout classLayout, ByteBuffer fieldValues, long[] fieldObjIds, int from) {
+        for (int i = 0; i < classLayout.getFieldsCount(); i++) {
+            if (classLayout.getFieldType(i) == BasicType.OBJECT) {
+                fieldObjIds[from + i] = dumpReader.readId(fieldValues, classLayout.getFieldOffset(i));
+            }
+        }
     }
 
-    private class MainRecordHandler extends NullRecordHandler {
+    /**
+     * Builds decoded instance out of its field values and infos of objects it references; safe to be called by
+     * several threads at once.
+     *
+     * @param classLayout null if class of instance was not dumped
+     */
+    private HeapDumpClassInstance createHeapDumpClassInstance(long instanceId, ObjectInfo objectInfo,
+                                                              ClassLayout classLayout, ByteBuffer fieldValues,
+                                                              long[] fieldObjIds, ObjectInfo[] fieldObjectInfos,
+                                                              int fieldObjIdsFrom) {
+        String className = classNamesByClassObjIdMap.get(objectInfo.getClassId());
+
+        if (classLayout == null) { // no class dump
+            return new HeapDumpClassInstance(instanceId, className, Collections.emptyList());
+        }
 
-        @Override
-        public void classDump(long classObjId, int stackTraceSerialNum, long superClassObjId, long classLoaderObjId,
-                              long signersObjId, long protectionDomainObjId, long reserved1, long reserved2,
-                              int instanceSize, Constant[] constants, Static[] statics,
-                              InstanceField[] instanceFields) {
-            // TODO handle constants and statics
-            // TODO record size
+        List<HeapDumpClassInstanceField> instanceFields = new ArrayList<>(classLayout.getFieldsCount());
 
-            classInfoByClassObjIdMap.putIfAbsent(classObjId, new ClassProcessingInfo(classObjId));
+        for (int i = 0; i < classLayout.getFieldsCount(); i++) {
+            String fieldName = classLayout.getFieldName(i);
+            BasicType fieldType = classLayout.getFieldType(i);
+            int fieldOffset = classLayout.getFieldOffset(i);
 
-            parentClassIdByChildIdMap.put(classObjId, superClassObjId);
+            if (fieldType == BasicType.OBJECT) {
+                instanceFields.add(createObjectField(fieldName, fieldObjIds[fieldObjIdsFrom + i],
+                                                     fieldObjectInfos[fieldObjIdsFrom + i]));
+            } else { // all primitive values
+                instanceFields.add(new HeapDumpClassInstancePrimitiveField(
+                    fieldName, fieldType.readPrimitiveValueAsString(fieldValues, fieldOffset)));
+            }
+        }
+
+        return new HeapDumpClassInstance(instanceId, className, Collections.unmodifiableList(instanceFields));
+    }
 
-            ClassProcessingInfo classInfo = classInfoByClassObjIdMap.get(classObjId);
+    private static long estimateDecodedObjectWeight(Object decodedObject) {
+        if (decodedObject instanceof HeapDumpClassInstance) {
+            long weight = DECODED_OBJECT_WEIGHT;
 
-            if (classInfo.fieldProcessingInfos == null) {
-                classInfo.fieldProcessingInfos =
-                    Arrays.stream(instanceFields)
-                        .map(instanceField -> {
-                            long fieldNameId = instanceField.fieldNameStringId;
+            for (HeapDumpClassInstanceField field : ((HeapDumpClassInstance) decodedObject).getInstanceFields()) {
+                weight += DECODED_LIST_ELEMENT_WEIGHT + DECODED_FIELD_WEIGHT;
 
-                            classFieldInfoByNameIdMap.putIfAbsent(fieldNameId, new ArrayList<>());
+                if (field instanceof HeapDumpClassInstancePrimitiveField) {
+                    weight += estimateStringWeight(((HeapDumpClassInstancePrimitiveField) field).getValueAsString());
+                }
+            }
 
-                            ClassFieldProcessingInfo fieldInfo = new ClassFieldProcessingInfo();
-                            classFieldInfoByNameIdMap.get(fieldNameId).add(fieldInfo);
+            return weight;
+        }
 
-                            return fieldInfo;
-                        })
-                        .collect(Collectors.toList());
+        // page of array elements; instances among them are cached (and weighed) on their own
+        long weight = DECODED_OBJECT_WEIGHT;
+
+        for (Object element : (List<?>) decodedObject) {
+            weight += DECODED_LIST_ELEMENT_WEIGHT;
+
+            if (element instanceof String) {
+                weight += estimateStringWeight((String) element);
+            } else if (element != null) {
+                weight += DECODED_OBJECT_WEIGHT;
+            }
+        }
+
+        return weight;
+    }
+
+    private static long estimateStringWeight(String string) {
+        return STRING_WEIGHT + 2L * string.length();
+    }
+
+    /**
+     * Looks up infos of referenced objects with single pass over object info storage.
+     *
+     * @return infos in order of given ids; null for null references and class objects, which are not in storage
+     */
+    private ObjectInfo[] getDumpedObjectInfos(long[] objIds) {
+        ObjectInfo[] objectInfos = new ObjectInfo[objIds.length];
+
+        long[] dumpedObjIds = new long[objIds.length];
+        int[] dumpedObjIdxs = new int[objIds.length];
+        int dumpedObjIdsCount = 0;
+
+        for (int i = 0; i < objIds.length; i++) {
+            if (objIds[i] != 0 && !classNamesByClassObjIdMap.containsKey(objIds[i])) {
+                dumpedObjIds[dumpedObjIdsCount] = objIds[i];
+                dumpedObjIdxs[dumpedObjIdsCount] = i;
+                dumpedObjIdsCount++;
+            }
+        }
+
+        if (dumpedObjIdsCount == 0) {
+            return objectInfos;
+        }
+
+        ObjectInfo[] dumpedObjectInfos =
+            objectInfoStorage.getObjectInfos(Arrays.copyOf(dumpedObjIds, dumpedObjIdsCount));
+
+        for (int k = 0; k < dumpedObjIdsCount; k++) {
+            objectInfos[dumpedObjIdxs[k]] = dumpedObjectInfos[k];
+        }
+
+        return objectInfos;
+    }
+
+    /**
+     * @param objectInfo info of referenced object; null for null reference and class object
+     */
+    private HeapDumpClassInstanceField createObjectField(String fieldName, long valueObjectId,
+                                                         ObjectInfo objectInfo) {
+        if (valueObjectId == 0) { // null value
+            return new HeapDumpClassInstanceClassInstanceField(fieldName,
+                                                               0,
+                                                               // TODO get type info from class dump?
+                                                               null);
+        } else if (classNamesByClassObjIdMap.containsKey(valueObjectId)) {
+            String className = classNamesByClassObjIdMap.get(valueObjectId);
+            return new HeapDumpClassInstanceClassField(fieldName,
+                                                       valueObjectId,
+                                                       "Class<" + className + ">");
+        }
+
+        String typeName;
+
+        if (objectInfo.getType() == ObjectType.INSTANCE) {
+            typeName = classNamesByClassObjIdMap.get(objectInfo.getClassId());
+            return new HeapDumpClassInstanceClassInstanceField(fieldName,
+                                                               valueObjectId,
+                                                               typeName);
+        } else if (objectInfo.getType() == ObjectType.OBJECT_ARRAY) {
+            if (classNamesByClassObjIdMap.containsKey(objectInfo.getClassId())) {
+                // TODO remove copy paste
+                String className = classNamesByClassObjIdMap.get(objectInfo.getClassId());
+                typeName = "Class<" + className + ">[]";
+            } else {
+                typeName = classNamesByClassObjIdMap.get(objectInfo.getClassId()) + "[]";
             }
+            return new HeapDumpClassInstanceObjectArrayField(fieldName,
+                                                             valueObjectId,
+                                                             typeName);
+        } else { // PRIMITIVE_ARRAY
+            typeName = objectInfo.getPrimitiveType().toString().toLowerCase() + "[]";
+            return new HeapDumpClassInstancePrimitiveArrayField(fieldName,
+                                                                valueObjectId,
+                                                                typeName);
+        }
+    }
+
+    /**
+     * Identifies a decoded instance or a page of array elements.
+     */
+    private static final class DecodedObjectKey {
+        private static final int WHOLE_OBJECT = -1;
+
+        private final long objId;
+        private final int offset;
+        private final int limit;
+
+        DecodedObjectKey(long objId) {
+            this(objId, 0, WHOLE_OBJECT);
+        }
+
+        DecodedObjectKey(long objId, int offset, int limit) {
+            this.objId = objId;
+            this.offset = offset;
+            this.limit = limit;
         }
 
         @Override
-        public void stringInUTF8(long id, String data) {
-            // we are called strictly after all classes loads/dumps
-            if (classInfoByNameIdMap.containsKey(id)) {
-                classInfoByNameIdMap.get(id).forEach(info -> info.name = sanitizeClassNameFromHeapDump(data));
-            } else if (classFieldInfoByNameIdMap.containsKey(id)) {
-                classFieldInfoByNameIdMap.get(id).forEach(info -> info.name = sanitizeClassNameFromHeapDump(data));
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
             }
+            if (!(o instanceof DecodedObjectKey)) {
+                return false;
+            }
+            DecodedObjectKey that = (DecodedObjectKey) o;
+            return objId == that.objId && offset == that.offset && limit == that.limit;
         }
 
         @Override
-        public void loadClass(int classSerialNum, long classObjId, int stackTraceSerialNum, long classNameStringId) {
-            classInfoByClassObjIdMap.putIfAbsent(classObjId, new ClassProcessingInfo(classObjId));
-            classInfoByNameIdMap.putIfAbsent(classNameStringId, new ArrayList<>());
+        public int hashCode() {
+            return 31 * (31 * Long.hashCode(objId) + offset) + limit;
+        }
+    }
+
+    @FunctionalInterface
+    private interface PageReader<T> {
+        List<T> read(long ownerId, long offset, int limit) throws IOException;
+    }
 
-            classInfoByNameIdMap.get(classNameStringId).add(classInfoByClassObjIdMap.get(classObjId));
+    @FunctionalInterface
+    private interface PageSupplier<T> {
+        T get() throws IOException;
+    }
+
+    /**
+     * Identifies a page of instances or array elements by its reader and owner (class or array).
+     */
+    private static final class PageKey {
+        private final PageReader<?> pageReader;
+        private final long ownerId;
+        private final long offset;
+        private final int limit;
+
+        PageKey(PageReader<?> pageReader, long ownerId, long offset, int limit) {
+            this.pageReader = pageReader;
+            this.ownerId = ownerId;
+            this.offset = offset;
+            this.limit = limit;
         }
 
         @Override
-        public void instanceDumpAtOffset(long objId, int stackTraceSerialNum, long classObjId, long fileOffset) {
-            classInfoByClassObjIdMap.putIfAbsent(classObjId, new ClassProcessingInfo(classObjId));
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey that = (PageKey) o;
+            return pageReader == that.pageReader && ownerId == that.ownerId && offset == that.offset
+                   && limit == that.limit;
+        }
 
-            classInfoByClassObjIdMap.get(classObjId).count++;
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * pageReader.hashCode() + Long.hashCode(ownerId)) + Long.hashCode(offset)) + limit;
+        }
+    }
 
-            classInstancesStorage.registerInstance(classObjId, objId);
-            objectInfoStorage.registerObjectInfo(new ObjectInfo(objId, classObjId, fileOffset, ObjectType.INSTANCE));
+    /**
+     * Reads a page ahead of request, so that it gets into decoded objects cache. Runs at most once: either by query
+     * executor or by the thread requesting the page if that comes first.
+     */
+    private final class PagePrefetch implements Runnable {
+        private final PageKey pageKey;
+        private boolean done;
+
+        PagePrefetch(PageKey pageKey) {
+            this.pageKey = pageKey;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (done || closed) {
+                return;
+            }
+
+            try {
+                pageKey.pageReader.read(pageKey.ownerId, pageKey.offset, pageKey.limit);
+            } catch (IOException | RuntimeException e) {
+                // best effort; page is read again when requested
+            } finally {
+                done = true;
+                pagePrefetches.remove(pageKey, this);
+            }
+        }
+    }
+
+    /**
+     * Receives heap dump sub-records of segments indexed by one thread.
+     */
+    private class SegmentRecordHandler implements HprofIndexHandler {
+
+        // if false, objects are registered right into main storages
+        final boolean sharded;
+
+        // instances counts are kept by dense class ordinals, so counting an instance is an array increment
+        final ClassDictionary classDictionary = new ClassDictionary();
+        long[] classInstancesCounts = new long[INITIAL_CLASS_COUNTS_SIZE];
+        long[] objectArraysCounts = new long[INITIAL_CLASS_COUNTS_SIZE];
+        final long[] primitiveArraysCountsByType = new long[PRIMITIVE_TYPES.length];
+
+        final TypeInstancesFileStorage classInstancesStorage;
+        final TypeInstancesFileStorage objectArraysInstancesStorage;
+        final TypeInstancesFileStorage primitiveArraysInstancesStorage;
+        final ObjectInfoBinarySearchFileStorage objectInfoStorage;
+
+        long unreportedObjectsCount;
+
+        SegmentRecordHandler(boolean sharded) throws IOException {
+            this.sharded = sharded;
+
+            if (sharded) {
+                classInstancesStorage = new TypeInstancesFileStorage();
+                objectArraysInstancesStorage = new TypeInstancesFileStorage();
+                primitiveArraysInstancesStorage = new TypeInstancesFileStorage();
+                objectInfoStorage = HprofViewer.this.objectInfoStorage.createShard();
+            } else {
+                classInstancesStorage = HprofViewer.this.classInstancesStorage;
+                objectArraysInstancesStorage = HprofViewer.this.objectArraysInstancesStorage;
+                primitiveArraysInstancesStorage = HprofViewer.this.primitiveArraysInstancesStorage;
+                objectInfoStorage = HprofViewer.this.objectInfoStorage;
+            }
         }
 
         @Override
-        public void objArrayDumpAtOffset(long objId, int stackTraceSerialNum, long elemClassObjId, long fileOffset) {
-            objectArraysCountByElementClassIdMap.putIfAbsent(elemClassObjId, new InstancesCount());
+        public void segmentStart(int segmentIdx) {
+            if (sharded) {
+                classInstancesStorage.startDumpSegment(segmentIdx);
+                objectArraysInstancesStorage.startDumpSegment(segmentIdx);
+                primitiveArraysInstancesStorage.startDumpSegment(segmentIdx);
+            }
+        }
+
+        @Override
+        public void classDump(long classObjId, long superClassObjId, long[] fieldNameStringIds,
+                              BasicType[] fieldTypes) {
+            registerClassDump(classObjId, superClassObjId, fieldNameStringIds, fieldTypes);
+        }
+
+        @Override
+        public void instanceDumpAtOffset(long objId, long classObjId, long fileOffset) {
+            classInstancesCounts[classOrdinal(classObjId)]++;
 
-            objectArraysCountByElementClassIdMap.get(elemClassObjId).count++;
+            classInstancesStorage.registerInstance(classObjId, objId);
+            objectInfoStorage.registerObjectInfo(objId, classObjId, fileOffset, ObjectType.INSTANCE);
+
+            countIndexedObject();
+        }
+
+        @Override
+        public void objArrayDumpAtOffset(long objId, long elemClassObjId, long fileOffset) {
+            objectArraysCounts[classOrdinal(elemClassObjId)]++;
 
             objectArraysInstancesStorage.registerInstance(elemClassObjId, objId);
-            objectInfoStorage.registerObjectInfo(new ObjectInfo(objId, elemClassObjId, fileOffset,
-                                                                ObjectType.OBJECT_ARRAY));
+            objectInfoStorage.registerObjectInfo(objId, elemClassObjId, fileOffset, ObjectType.OBJECT_ARRAY);
+
+            countIndexedObject();
         }
 
         @Override
-        public void primArrayDumpAtOffset(long objId, int stackTraceSerialNum, byte elemType, long fileOffset) {
-            PrimitiveType primitiveType = primitiveTypeFromHprofElementType(elemType);
+        public void primArrayDumpAtOffset(long objId, BasicType elemType, long fileOffset) {
+            PrimitiveType primitiveType = primitiveTypeFromHprofElementType(elemType.getHprofCode());
+
+            primitiveArraysCountsByType[primitiveType.ordinal()]++;
 
-            primitiveArraysCountByTypeMap.putIfAbsent(primitiveType, new InstancesCount());
+            primitiveArraysInstancesStorage.registerInstance(primitiveType.ordinal(), objId);
+            objectInfoStorage.registerObjectInfo(objId, primitiveType, fileOffset);
 
-            primitiveArraysCountByTypeMap.get(primitiveType).count++;
+            countIndexedObject();
+        }
+
+        /**
+         * Deletes files of own storages, if any; merged shards have no files left, so this is a no-op for them.
+         */
+        void discardShards() {
+            if (sharded) {
+                classInstancesStorage.discard();
+                objectArraysInstancesStorage.discard();
+                primitiveArraysInstancesStorage.discard();
+                objectInfoStorage.discard();
+            }
+        }
+
+        private void countIndexedObject() {
+            if (++unreportedObjectsCount == INDEXED_OBJECTS_PROGRESS_STEP) {
+                loadingProgress.objectsIndexed(unreportedObjectsCount);
+                unreportedObjectsCount = 0;
+            }
+        }
 
-            primitiveArraysInstancesStorage.registerInstance(primitiveTypeFromHprofElementType(elemType).ordinal(),
-                                                             objId);
-            objectInfoStorage.registerObjectInfo(new ObjectInfo(objId, primitiveType, fileOffset));
+        private int classOrdinal(long classObjId) {
+            int ordinal = classDictionary.getOrAddOrdinal(classObjId);
+
+            if (ordinal == classInstancesCounts.length) {
+                classInstancesCounts = Arrays.copyOf(classInstancesCounts, ordinal * 2);
+                objectArraysCounts = Arrays.copyOf(objectArraysCounts, ordinal * 2);
+            }
+
+            return ordinal;
         }
     }
 
+    /**
+     * Tracks progress of loading for {@link LoadingProgressListener} and checks for cancellation; used by several
+     * indexing threads at once.
+     */
+    private static final class LoadingProgress {
+        private final LoadingProgressListener listener;
+        private final CancellationToken cancellationToken;
+
+        private LoadingPhase phase;
+        private long phaseBytesDone;
+        private long phaseBytesSize;
+        private long objectsIndexed;
+
+        LoadingProgress(LoadingProgressListener listener, CancellationToken cancellationToken) {
+            this.listener = listener;
+            this.cancellationToken = cancellationToken;
+        }
+
+        synchronized void startPhase(LoadingPhase phase, long phaseBytesSize) {
+            cancellationToken.throwIfCancelled();
+
+            this.phase = phase;
+            this.phaseBytesSize = phaseBytesSize;
+            phaseBytesDone = 0;
+
+            listener.progress(phase, phaseBytesDone, phaseBytesSize, objectsIndexed);
+        }
+
+        synchronized void bytesScanned(long bytes) {
+            cancellationToken.throwIfCancelled();
+
+            phaseBytesDone += bytes;
+
+            listener.progress(phase, phaseBytesDone, phaseBytesSize, objectsIndexed);
+        }
+
+        synchronized void objectsIndexed(long count) {
+            objectsIndexed += count;
+        }
+
+        void checkCancelled() {
+            cancellationToken.throwIfCancelled();
+        }
+    }
+
+    // called by several segment indexing threads at once
+    private synchronized void registerClassDump(long classObjId, long superClassObjId, long[] fieldNameStringIds,
+                                                BasicType[] fieldTypes) {
+        ClassProcessingInfo classInfo = classInfoByClassObjIdMap.computeIfAbsent(classObjId,
+                                                                                 ClassProcessingInfo::new);
+
+        parentClassIdByChildIdMap.put(classObjId, superClassObjId);
+
+        classFieldTypesByClassObjIdMap.putIfAbsent(classObjId, fieldTypes);
+
+        if (classInfo.fieldProcessingInfos == null) {
+            classInfo.fieldProcessingInfos =
+                Arrays.stream(fieldNameStringIds)
+                    .mapToObj(fieldNameId -> {
+                        ClassFieldProcessingInfo fieldInfo = new ClassFieldProcessingInfo();
+                        classFieldInfoByNameIdMap.computeIfAbsent(fieldNameId, id -> new ArrayList<>()).add(fieldInfo);
+
+                        return fieldInfo;
+                    })
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void registerString(long id, String data) {
+        // we are called strictly after all classes loads/dumps
+        List<ClassProcessingInfo> classInfos = classInfoByNameIdMap.get(id);
+
+        if (classInfos != null) {
+            classInfos.forEach(info -> info.name = sanitizeClassNameFromHeapDump(data));
+        } else {
+            List<ClassFieldProcessingInfo> fieldInfos = classFieldInfoByNameIdMap.get(id);
+
+            if (fieldInfos != null) {
+                fieldInfos.forEach(info -> info.name = sanitizeClassNameFromHeapDump(data));
+            }
+        }
+    }
+
+    private void registerLoadedClass(long classObjId, long classNameStringId) {
+        ClassProcessingInfo classInfo = classInfoByClassObjIdMap.computeIfAbsent(classObjId,
+                                                                                 ClassProcessingInfo::new);
+
+        classInfoByNameIdMap.computeIfAbsent(classNameStringId, id -> new ArrayList<>()).add(classInfo);
+    }
+
     private PrimitiveType primitiveTypeFromHprofElementType(byte type) {
         switch (type) {
             case 4:
@@ -661,7 +1943,7 @@ public class HprofViewer {
     private static class ClassProcessingInfo {
         long id;
         String name;
-        int count;
+        long count;
         List<ClassFieldProcessingInfo> fieldProcessingInfos;
 
         public ClassProcessingInfo(long id) {
@@ -674,6 +1956,6 @@ public class HprofViewer {
     }
 
     private static class InstancesCount {
-        int count;
+        long count;
     }
 }
@@ -0,0 +1,92 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hprof basic types as they appear in class dumps, instance dumps and primitive array dumps.
+ */
+public enum BasicType {
+    OBJECT(2, -1),
+    BOOLEAN(4, 1),
+    CHAR(5, 2),
+    FLOAT(6, 4),
+    DOUBLE(7, 8),
+    BYTE(8, 1),
+    SHORT(9, 2),
+    INT(10, 4),
+    LONG(11, 8);
+
+    private static final BasicType[] TYPES_BY_HPROF_CODE = new BasicType[12];
+
+    static {
+        for (BasicType type : values()) {
+            TYPES_BY_HPROF_CODE[type.hprofCode] = type;
+        }
+    }
+
+    private final byte hprofCode;
+    private final int size;
+
+    BasicType(int hprofCode, int size) {
+        this.hprofCode = (byte) hprofCode;
+        this.size = size;
+    }
+
+    public byte getHprofCode() {
+        return hprofCode;
+    }
+
+    /**
+     * @return value size in bytes; for {@link #OBJECT} it is dump identifier size
+     */
+    public int getSize(int idSize) {
+        return this == OBJECT ? idSize : size;
+    }
+
+    public static BasicType fromHprofCode(byte hprofCode) {
+        BasicType type = hprofCode >= 0 && hprofCode < TYPES_BY_HPROF_CODE.length
+                         ? TYPES_BY_HPROF_CODE[hprofCode]
+                         : null;
+
+        if (type == null) {
+            throw new RuntimeException("Unexpected basic type: " + hprofCode);
+        }
+
+        return type;
+    }
+
+    /**
+     * Reads primitive value at buffer position and formats it the same way as boxed value's toString() does.
+     */
+    public String readPrimitiveValueAsString(ByteBuffer buffer) {
+        String value = readPrimitiveValueAsString(buffer, buffer.position());
+        buffer.position(buffer.position() + size);
+        return value;
+    }
+
+    /**
+     * Absolute counterpart of {@link #readPrimitiveValueAsString(ByteBuffer)}; buffer position is not changed.
+     */
+    public String readPrimitiveValueAsString(ByteBuffer buffer, int position) {
+        switch (this) {
+            case BOOLEAN:
+                return Boolean.toString(buffer.get(position) != 0);
+            case CHAR:
+                return String.valueOf(buffer.getChar(position));
+            case FLOAT:
+                return Float.toString(buffer.getFloat(position));
+            case DOUBLE:
+                return Double.toString(buffer.getDouble(position));
+            case BYTE:
+                return Byte.toString(buffer.get(position));
+            case SHORT:
+                return Short.toString(buffer.getShort(position));
+            case INT:
+                return Integer.toString(buffer.getInt(position));
+            case LONG:
+                return Long.toString(buffer.getLong(position));
+            default:
+                throw new RuntimeException("not a primitive type: " + this);
+        }
+    }
+}
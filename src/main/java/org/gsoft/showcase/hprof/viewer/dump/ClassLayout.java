@@ -0,0 +1,56 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+/**
+ * Instance fields of a class flattened across its hierarchy, in the order of instance dump field values (fields of
+ * the class itself first, then of its superclass and so on), with value offsets precomputed.
+ */
+public class ClassLayout {
+
+    private final String[] fieldNames;
+    private final BasicType[] fieldTypes;
+    private final int[] fieldOffsets;
+    private final int fieldValuesSize;
+
+    public ClassLayout(String[] fieldNames, BasicType[] fieldTypes, int idSize) {
+        if (fieldNames.length != fieldTypes.length) {
+            throw new IllegalArgumentException("field names and types count differ");
+        }
+
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+
+        fieldOffsets = new int[fieldTypes.length];
+
+        int offset = 0;
+
+        for (int i = 0; i < fieldTypes.length; i++) {
+            fieldOffsets[i] = offset;
+            offset += fieldTypes[i].getSize(idSize);
+        }
+
+        fieldValuesSize = offset;
+    }
+
+    public int getFieldsCount() {
+        return fieldNames.length;
+    }
+
+    public String getFieldName(int fieldIdx) {
+        return fieldNames[fieldIdx];
+    }
+
+    public BasicType getFieldType(int fieldIdx) {
+        return fieldTypes[fieldIdx];
+    }
+
+    public int getFieldOffset(int fieldIdx) {
+        return fieldOffsets[fieldIdx];
+    }
+
+    /**
+     * @return size of all field values of an instance in bytes
+     */
+    public int getFieldValuesSize() {
+        return fieldValuesSize;
+    }
+}
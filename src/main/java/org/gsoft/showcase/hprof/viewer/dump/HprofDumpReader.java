@@ -0,0 +1,139 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads instance and array dump records of hprof file by their file offsets, without parsing the whole dump.
+ * Offsets are the ones reported by {@link HprofIndexScanner}; they point to record body (object id).
+ * <p>
+ * File is memory-mapped, so records are read with no system calls and field values are decoded right from mapped
+ * memory. Reads don't share any state, so reader may be used by several threads at once.
+ */
+public class HprofDumpReader {
+
+    private final MappedHprofFile file;
+    private final int idSize;
+
+    public HprofDumpReader(File hprofFile) throws IOException {
+        file = new MappedHprofFile(hprofFile);
+
+        // header: null-terminated format name, u4 identifier size, u8 timestamp
+        long idSizeOffset = 0;
+
+        while (idSizeOffset < file.size() && file.getByte(idSizeOffset) != 0) {
+            idSizeOffset++; // skipping format name
+        }
+
+        if (idSizeOffset + 4 >= file.size()) {
+            throw new IOException("not a hprof file: " + hprofFile);
+        }
+
+        idSize = file.getInt(idSizeOffset + 1);
+
+        if (idSize != 4 && idSize != 8) {
+            throw new IOException("unsupported identifier size: " + idSize);
+        }
+    }
+
+    public int getIdSize() {
+        return idSize;
+    }
+
+    /**
+     * @return size of instance dump record body (as addressed by file offsets) with given size of field values
+     */
+    public int getInstanceRecordSize(int fieldValuesSize) {
+        // id, u4 stack trace serial number, id class object, u4 field values size, field values
+        return idSize + 4 + idSize + 4 + fieldValuesSize;
+    }
+
+    /**
+     * Reads given region of file ahead of decoding records in it; used to merge reads of records lying close to
+     * each other into one sequential read.
+     */
+    public void prefetch(long fileOffset, long length) {
+        file.touch(fileOffset, length);
+    }
+
+    /**
+     * Returns field values of an instance, given their size is known from {@link ClassLayout}.
+     *
+     * @return buffer with field values starting at 0, backed by mapped file in most cases
+     */
+    public ByteBuffer readInstanceFieldValues(long fileOffset, int fieldValuesSize) throws IOException {
+        // id, u4 stack trace serial number, id class object, u4 field values size, field values
+        long fieldValuesSizeOffset = fileOffset + idSize + 4 + idSize;
+
+        int actualFieldValuesSize = file.getInt(fieldValuesSizeOffset);
+
+        if (actualFieldValuesSize != fieldValuesSize) {
+            throw new IOException("instance at " + fileOffset + " has " + actualFieldValuesSize
+                                  + " bytes of field values instead of " + fieldValuesSize);
+        }
+
+        return file.slice(fieldValuesSizeOffset + 4, fieldValuesSize);
+    }
+
+    /**
+     * @return number of elements of object or primitive array
+     */
+    public int readArrayLength(long fileOffset) {
+        // id, u4 stack trace serial number, u4 length, ...
+        return file.getInt(fileOffset + idSize + 4);
+    }
+
+    public long[] readObjectArrayElements(long fileOffset, int offset, int limit) throws IOException {
+        // id, u4 stack trace serial number, u4 length, id element class object, elements
+        long lengthOffset = fileOffset + idSize + 4;
+
+        int length = file.getInt(lengthOffset);
+        int elementsToRead = Math.max(0, Math.min(limit, length - offset));
+
+        ByteBuffer elementsBuffer = file.slice(lengthOffset + 4 + idSize + (long) offset * idSize,
+                                               elementsToRead * idSize);
+
+        long[] elements = new long[elementsToRead];
+
+        for (int i = 0; i < elementsToRead; i++) {
+            elements[i] = readId(elementsBuffer, i * idSize);
+        }
+
+        return elements;
+    }
+
+    public List<String> readPrimitiveArrayElements(long fileOffset, int offset, int limit) throws IOException {
+        // id, u4 stack trace serial number, u4 length, u1 element type, elements
+        long lengthOffset = fileOffset + idSize + 4;
+
+        int length = file.getInt(lengthOffset);
+        BasicType elementType = BasicType.fromHprofCode(file.getByte(lengthOffset + 4));
+        int elementSize = elementType.getSize(idSize);
+        int elementsToRead = Math.max(0, Math.min(limit, length - offset));
+
+        ByteBuffer elementsBuffer = file.slice(lengthOffset + 4 + 1 + (long) offset * elementSize,
+                                               elementsToRead * elementSize);
+
+        List<String> elements = new ArrayList<>(elementsToRead);
+
+        for (int i = 0; i < elementsToRead; i++) {
+            elements.add(elementType.readPrimitiveValueAsString(elementsBuffer, i * elementSize));
+        }
+
+        return elements;
+    }
+
+    /**
+     * Releases mapped hprof file; reader is not usable afterwards.
+     */
+    public void close() {
+        file.close();
+    }
+
+    public long readId(ByteBuffer buffer, int position) {
+        return idSize == 4 ? buffer.getInt(position) & 0xFFFFFFFFL : buffer.getLong(position);
+    }
+}
@@ -0,0 +1,40 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+/**
+ * Receives records of hprof file needed to index it; see {@link HprofIndexScanner}.
+ * Dumped objects are reported with file offsets of their sub-record bodies.
+ */
+public interface HprofIndexHandler {
+
+    default boolean isStringNeeded(long id) {
+        return true;
+    }
+
+    default void stringInUTF8(long id, String data) {
+    }
+
+    default void loadClass(long classObjId, long classNameStringId) {
+    }
+
+    /**
+     * Called before objects of every heap dump segment are reported.
+     *
+     * @param segmentIdx index of segment in the list given to {@link HprofIndexScanner#indexSegments}; segments
+     *                   indexed by the same handler come in ascending order
+     */
+    default void segmentStart(int segmentIdx) {
+    }
+
+    default void classDump(long classObjId, long superClassObjId, long[] fieldNameStringIds,
+                           BasicType[] fieldTypes) {
+    }
+
+    default void instanceDumpAtOffset(long objId, long classObjId, long fileOffset) {
+    }
+
+    default void objArrayDumpAtOffset(long objId, long elemClassObjId, long fileOffset) {
+    }
+
+    default void primArrayDumpAtOffset(long objId, BasicType elemType, long fileOffset) {
+    }
+}
@@ -0,0 +1,386 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Indexing pass over hprof file which decodes only what index needs and skips everything else by known lengths.
+ * <p>
+ * Heap dump is split by JVM into HEAP_DUMP_SEGMENT records, which are independent of each other, so they are indexed
+ * by several threads at once. Index is built in three steps:
+ * <ol>
+ * <li>{@link #scanRecords(HprofIndexHandler)} - top level records headers; reports loaded classes and locates
+ * heap dump segments;</li>
+ * <li>{@link #indexSegments(List, List)} - heap dump segments; reports class dumps and dumped objects;</li>
+ * <li>{@link #scanStrings(HprofIndexHandler)} - strings, after all classes are known (same as HprofParser does).</li>
+ * </ol>
+ * Every step reports bytes it has scanned to progress listener, which may stop scanning by throwing an exception
+ * (e.g. {@link java.util.concurrent.CancellationException}); it is rethrown by the step.
+ */
+public class HprofIndexScanner implements Closeable {
+
+    private static final int TAG_UTF8 = 0x01;
+    private static final int TAG_LOAD_CLASS = 0x02;
+    private static final int TAG_HEAP_DUMP = 0x0C;
+    private static final int TAG_HEAP_DUMP_SEGMENT = 0x1C;
+
+    private static final int SUB_TAG_ROOT_UNKNOWN = 0xFF;
+    private static final int SUB_TAG_ROOT_JNI_GLOBAL = 0x01;
+    private static final int SUB_TAG_ROOT_JNI_LOCAL = 0x02;
+    private static final int SUB_TAG_ROOT_JAVA_FRAME = 0x03;
+    private static final int SUB_TAG_ROOT_NATIVE_STACK = 0x04;
+    private static final int SUB_TAG_ROOT_STICKY_CLASS = 0x05;
+    private static final int SUB_TAG_ROOT_THREAD_BLOCK = 0x06;
+    private static final int SUB_TAG_ROOT_MONITOR_USED = 0x07;
+    private static final int SUB_TAG_ROOT_THREAD_OBJECT = 0x08;
+    private static final int SUB_TAG_CLASS_DUMP = 0x20;
+    private static final int SUB_TAG_INSTANCE_DUMP = 0x21;
+    private static final int SUB_TAG_OBJ_ARRAY_DUMP = 0x22;
+    private static final int SUB_TAG_PRIM_ARRAY_DUMP = 0x23;
+
+    // large enough for sequential reads to be efficient, small enough for buffer to stay in CPU cache while decoded
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // progress is reported (and cancellation checked) about this often in every scanning thread
+    private static final int PROGRESS_STEP_BYTES_SIZE = 4 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int idSize;
+    private final long firstRecordOffset;
+
+    private final LongConsumer progressListener;
+
+    public HprofIndexScanner(File hprofFile) throws IOException {
+        this(hprofFile, bytesScanned -> {
+        });
+    }
+
+    /**
+     * @param progressListener receives numbers of bytes scanned since its previous call; called by indexing threads,
+     *                         possibly several at once
+     */
+    public HprofIndexScanner(File hprofFile, LongConsumer progressListener) throws IOException {
+        this.progressListener = progressListener;
+
+        file = new RandomAccessFile(hprofFile, "r");
+        channel = file.getChannel();
+
+        // header: null-terminated format name, u4 identifier size, u8 timestamp
+        while (file.readByte() != 0) {
+            // skipping format name
+        }
+
+        idSize = file.readInt();
+
+        if (idSize != 4 && idSize != 8) {
+            throw new IOException("unsupported identifier size: " + idSize);
+        }
+
+        firstRecordOffset = file.getFilePointer() + 8;
+    }
+
+    public int getIdSize() {
+        return idSize;
+    }
+
+    /**
+     * Reports loaded classes; skips everything else.
+     *
+     * @return heap dump segments (or single heap dump record of older JVMs) to be indexed
+     */
+    public List<HeapDumpSegment> scanRecords(HprofIndexHandler handler) throws IOException {
+        List<HeapDumpSegment> segments = new ArrayList<>();
+
+        HprofInput input = new HprofInput(channel, firstRecordOffset, channel.size(), idSize, BUFFER_SIZE);
+        long reportedPosition = 0;
+
+        while (input.hasRemaining()) {
+            reportedPosition = reportProgress(input, reportedPosition, false);
+
+            int tag = input.readU1();
+            input.readInt(); // time
+            long length = input.readU4();
+
+            switch (tag) {
+                case TAG_LOAD_CLASS:
+                    input.readInt(); // class serial number
+                    long classObjId = input.readId();
+                    input.readInt(); // stack trace serial number
+                    handler.loadClass(classObjId, input.readId());
+                    break;
+                case TAG_HEAP_DUMP:
+                case TAG_HEAP_DUMP_SEGMENT:
+                    segments.add(new HeapDumpSegment(input.position(), length));
+                    input.skip(length);
+                    break;
+                default:
+                    input.skip(length);
+            }
+        }
+
+        reportProgress(input, reportedPosition, true);
+
+        return segments;
+    }
+
+    /**
+     * Indexes segments in as many threads as handlers given; each handler is used by its thread only.
+     */
+    public void indexSegments(List<HeapDumpSegment> segments, List<? extends HprofIndexHandler> handlers)
+        throws IOException {
+        if (handlers.size() == 1) {
+            for (int segmentIdx = 0; segmentIdx < segments.size(); segmentIdx++) {
+                handlers.get(0).segmentStart(segmentIdx);
+                indexSegment(segments.get(segmentIdx), handlers.get(0));
+            }
+            return;
+        }
+
+        AtomicInteger nextSegmentIdx = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(handlers.size(), runnable -> {
+            Thread thread = new Thread(runnable, "hprof-viewer-segment-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<Void>> futures = new ArrayList<>(handlers.size());
+
+            for (HprofIndexHandler handler : handlers) {
+                futures.add(executor.submit(() -> {
+                    int segmentIdx;
+
+                    try {
+                        // segments vary a lot in size, so they are taken one by one instead of split up front
+                        while ((segmentIdx = nextSegmentIdx.getAndIncrement()) < segments.size()) {
+                            handler.segmentStart(segmentIdx);
+                            indexSegment(segments.get(segmentIdx), handler);
+                        }
+                    } catch (Throwable t) {
+                        // other threads stop after their current segments
+                        nextSegmentIdx.set(segments.size());
+                        throw t;
+                    }
+
+                    return null;
+                }));
+            }
+
+            // all threads are waited for, so that no handler is in use after return
+            ExecutionException failure = null;
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+
+            if (failure != null) {
+                if (failure.getCause() instanceof IOException) {
+                    throw (IOException) failure.getCause();
+                }
+                if (failure.getCause() instanceof CancellationException) {
+                    throw (CancellationException) failure.getCause();
+                }
+                throw new IOException("failed to index segment", failure.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while indexing segments", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reports strings for which {@link HprofIndexHandler#isStringNeeded(long)} is true.
+     */
+    public void scanStrings(HprofIndexHandler handler) throws IOException {
+        HprofInput input = new HprofInput(channel, firstRecordOffset, channel.size(), idSize, BUFFER_SIZE);
+        long reportedPosition = 0;
+
+        while (input.hasRemaining()) {
+            reportedPosition = reportProgress(input, reportedPosition, false);
+
+            int tag = input.readU1();
+            input.readInt(); // time
+            long length = input.readU4();
+
+            if (tag == TAG_UTF8) {
+                long id = input.readId();
+                int dataSize = (int) (length - idSize);
+
+                if (handler.isStringNeeded(id)) {
+                    handler.stringInUTF8(id, input.readUtf8(dataSize));
+                } else {
+                    input.skip(dataSize);
+                }
+            } else {
+                input.skip(length);
+            }
+        }
+
+        reportProgress(input, reportedPosition, true);
+    }
+
+    private void indexSegment(HeapDumpSegment segment, HprofIndexHandler handler) throws IOException {
+        HprofInput input = new HprofInput(channel, segment.bodyOffset, segment.bodyOffset + segment.bodyLength,
+                                          idSize, BUFFER_SIZE);
+        long reportedPosition = segment.bodyOffset;
+
+        while (input.hasRemaining()) {
+            reportedPosition = reportProgress(input, reportedPosition, false);
+
+            int subTag = input.readU1();
+
+            switch (subTag) {
+                case SUB_TAG_ROOT_UNKNOWN:
+                case SUB_TAG_ROOT_STICKY_CLASS:
+                case SUB_TAG_ROOT_MONITOR_USED:
+                    input.skip(idSize);
+                    break;
+                case SUB_TAG_ROOT_JNI_GLOBAL:
+                    input.skip(idSize + idSize);
+                    break;
+                case SUB_TAG_ROOT_NATIVE_STACK:
+                case SUB_TAG_ROOT_THREAD_BLOCK:
+                    input.skip(idSize + 4);
+                    break;
+                case SUB_TAG_ROOT_JNI_LOCAL:
+                case SUB_TAG_ROOT_JAVA_FRAME:
+                case SUB_TAG_ROOT_THREAD_OBJECT:
+                    input.skip(idSize + 4 + 4);
+                    break;
+                case SUB_TAG_CLASS_DUMP:
+                    indexClassDump(input, handler);
+                    break;
+                case SUB_TAG_INSTANCE_DUMP: {
+                    long fileOffset = input.position();
+                    long objId = input.readId();
+                    input.readInt(); // stack trace serial number
+                    long classObjId = input.readId();
+                    input.skip(input.readU4()); // field values
+
+                    handler.instanceDumpAtOffset(objId, classObjId, fileOffset);
+                    break;
+                }
+                case SUB_TAG_OBJ_ARRAY_DUMP: {
+                    long fileOffset = input.position();
+                    long objId = input.readId();
+                    input.readInt(); // stack trace serial number
+                    long length = input.readU4();
+                    long elemClassObjId = input.readId();
+                    input.skip(length * idSize);
+
+                    handler.objArrayDumpAtOffset(objId, elemClassObjId, fileOffset);
+                    break;
+                }
+                case SUB_TAG_PRIM_ARRAY_DUMP: {
+                    long fileOffset = input.position();
+                    long objId = input.readId();
+                    input.readInt(); // stack trace serial number
+                    long length = input.readU4();
+                    BasicType elemType = BasicType.fromHprofCode((byte) input.readU1());
+                    input.skip(length * elemType.getSize(idSize));
+
+                    handler.primArrayDumpAtOffset(objId, elemType, fileOffset);
+                    break;
+                }
+                default:
+                    throw new IOException("unexpected heap dump sub-record tag " + subTag
+                                          + " at " + (input.position() - 1));
+            }
+        }
+
+        reportProgress(input, reportedPosition, true);
+    }
+
+    /**
+     * Reports bytes scanned since given position if there are enough of them, or all of them if scanning is over.
+     *
+     * @return position up to which bytes are reported
+     */
+    private long reportProgress(HprofInput input, long reportedPosition, boolean finished) {
+        long position = input.position();
+
+        if (position - reportedPosition < PROGRESS_STEP_BYTES_SIZE && !(finished && position > reportedPosition)) {
+            return reportedPosition;
+        }
+
+        progressListener.accept(position - reportedPosition);
+
+        return position;
+    }
+
+    private void indexClassDump(HprofInput input, HprofIndexHandler handler) throws IOException {
+        long classObjId = input.readId();
+        input.readInt(); // stack trace serial number
+        long superClassObjId = input.readId();
+        input.skip(5 * idSize); // class loader, signers, protection domain, reserved1, reserved2
+        input.readInt(); // instance size
+
+        int constantsCount = input.readU2();
+        for (int i = 0; i < constantsCount; i++) {
+            input.readU2(); // constant pool index
+            input.skip(BasicType.fromHprofCode((byte) input.readU1()).getSize(idSize));
+        }
+
+        int staticsCount = input.readU2();
+        for (int i = 0; i < staticsCount; i++) {
+            input.skip(idSize); // name string id
+            input.skip(BasicType.fromHprofCode((byte) input.readU1()).getSize(idSize));
+        }
+
+        int fieldsCount = input.readU2();
+        long[] fieldNameStringIds = new long[fieldsCount];
+        BasicType[] fieldTypes = new BasicType[fieldsCount];
+
+        for (int i = 0; i < fieldsCount; i++) {
+            fieldNameStringIds[i] = input.readId();
+            fieldTypes[i] = BasicType.fromHprofCode((byte) input.readU1());
+        }
+
+        handler.classDump(classObjId, superClassObjId, fieldNameStringIds, fieldTypes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static class HeapDumpSegment {
+        private final long bodyOffset;
+        private final long bodyLength;
+
+        public HeapDumpSegment(long bodyOffset, long bodyLength) {
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+        }
+
+        public long getBodyOffset() {
+            return bodyOffset;
+        }
+
+        public long getBodyLength() {
+            return bodyLength;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered sequential reader of a hprof file region, keeping track of current file offset.
+ */
+class HprofInput {
+
+    private final FileChannel channel;
+    private final long end;
+    private final int idSize;
+    private final ByteBuffer buffer;
+
+    private long bufferFileOffset; // file offset of buffer's first byte
+
+    HprofInput(FileChannel channel, long start, long end, int idSize, int bufferSize) {
+        this.channel = channel;
+        this.end = end;
+        this.idSize = idSize;
+
+        buffer = ByteBuffer.allocate(bufferSize);
+        buffer.limit(0);
+        bufferFileOffset = start;
+    }
+
+    long position() {
+        return bufferFileOffset + buffer.position();
+    }
+
+    boolean hasRemaining() {
+        return position() < end;
+    }
+
+    int readU1() throws IOException {
+        ensure(1);
+        return buffer.get() & 0xFF;
+    }
+
+    int readU2() throws IOException {
+        ensure(2);
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    int readInt() throws IOException {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    long readU4() throws IOException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    long readLong() throws IOException {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    long readId() throws IOException {
+        return idSize == 4 ? readU4() : readLong();
+    }
+
+    String readUtf8(int size) throws IOException {
+        byte[] bytes = new byte[size];
+
+        int read = 0;
+
+        while (read < size) {
+            ensure(1);
+
+            int toRead = Math.min(size - read, buffer.remaining());
+            buffer.get(bytes, read, toRead);
+            read += toRead;
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void skip(long bytes) {
+        if (bytes <= buffer.remaining()) {
+            buffer.position(buffer.position() + (int) bytes);
+        } else {
+            // dropping buffer; next read continues from new position
+            bufferFileOffset = position() + bytes;
+            buffer.limit(0);
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+
+        bufferFileOffset += buffer.position();
+        buffer.compact();
+
+        long readOffset = bufferFileOffset + buffer.position();
+
+        while (buffer.position() < bytes) {
+            int toRead = (int) Math.min(buffer.remaining(), end - readOffset);
+
+            if (toRead <= 0) {
+                throw new EOFException("unexpected end of hprof region at " + readOffset);
+            }
+
+            ByteBuffer target = buffer.duplicate();
+            target.limit(target.position() + toRead);
+
+            int read = channel.read(target, readOffset);
+
+            if (read == -1) {
+                throw new EOFException("unexpected end of hprof file at " + readOffset);
+            }
+
+            buffer.position(buffer.position() + read);
+            readOffset += read;
+        }
+
+        buffer.flip();
+    }
+}
@@ -0,0 +1,137 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only hprof file mapped into memory by windows of {@link #CHUNK_SIZE} bytes, so that files over 2 GB (the
+ * limit of single {@link MappedByteBuffer}) are supported.
+ * <p>
+ * Each window overlaps the next one by {@link #WINDOW_OVERLAP} bytes, so any value and any record region up to that
+ * size is served from single window with no copying. Only absolute reads are used and windows are never
+ * repositioned, so instances may be shared between threads.
+ */
+class MappedHprofFile {
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // larger than almost any instance dump and any page of array elements read at once
+    private static final int WINDOW_OVERLAP = 1024 * 1024;
+
+    // OS page size is not known; touching every 4 KB is enough for any page size
+    private static final int TOUCH_STRIDE = 4096;
+
+    private final long size;
+    private final MappedByteBuffer[] windows;
+
+    // written by touch() so that its reads aren't optimized out
+    private volatile int touchSink;
+
+    MappedHprofFile(File hprofFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(hprofFile, "r")) {
+            FileChannel channel = file.getChannel();
+
+            size = channel.size();
+            windows = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+
+            for (int i = 0; i < windows.length; i++) {
+                long windowStart = i * CHUNK_SIZE;
+                long windowSize = Math.min(CHUNK_SIZE + WINDOW_OVERLAP, size - windowStart);
+
+                // mapping stays valid after channel is closed
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+            }
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    byte getByte(long offset) {
+        return window(offset).get((int) (offset & CHUNK_MASK));
+    }
+
+    int getInt(long offset) {
+        return window(offset).getInt((int) (offset & CHUNK_MASK));
+    }
+
+    long getLong(long offset) {
+        return window(offset).getLong((int) (offset & CHUNK_MASK));
+    }
+
+    /**
+     * @return big-endian buffer with given region of file starting at 0; it is a view of mapped window unless region
+     * crosses the end of one, in which case it is copied
+     */
+    ByteBuffer slice(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IOException("region of " + length + " bytes at " + offset + " is out of hprof file");
+        }
+
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+
+        MappedByteBuffer window = window(offset);
+        int positionInWindow = (int) (offset & CHUNK_MASK);
+
+        if (positionInWindow + length <= window.capacity()) {
+            ByteBuffer view = window.duplicate();
+            view.position(positionInWindow);
+            view.limit(positionInWindow + length);
+            return view.slice();
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(length);
+
+        while (copy.hasRemaining()) {
+            long copyOffset = offset + copy.position();
+            ByteBuffer source = window(copyOffset).duplicate();
+            source.position((int) (copyOffset & CHUNK_MASK));
+            source.limit(source.position() + Math.min(source.remaining(), copy.remaining()));
+            copy.put(source);
+        }
+
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Faults in pages of given region in ascending order, so that OS reads them with sequential read-ahead instead of
+     * one random read per record.
+     */
+    void touch(long offset, long length) {
+        long end = Math.min(offset + length, size);
+        int sink = 0;
+
+        for (long pageOffset = Math.max(0, offset); pageOffset < end; pageOffset += TOUCH_STRIDE) {
+            sink += getByte(pageOffset);
+        }
+
+        if (end > offset) {
+            sink += getByte(end - 1);
+        }
+
+        touchSink = sink;
+    }
+
+    /**
+     * Drops windows, so that file is unmapped once they are garbage collected; JDK has no public way to unmap it
+     * right away. File is not read afterwards.
+     */
+    void close() {
+        Arrays.fill(windows, null);
+    }
+
+    private MappedByteBuffer window(long offset) {
+        return windows[(int) (offset >>> CHUNK_BITS)];
+    }
+}
@@ -0,0 +1,505 @@
+package org.gsoft.showcase.hprof.viewer.gui;
+
+import org.gsoft.showcase.hprof.viewer.HprofViewer;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpArrayInstance;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClass;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstance;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassObject;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpObjectArray;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpObjectArrayInstance;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpPrimitiveArray;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * Tree of dump types, their instances and elements of arrays, which is backed by the viewer directly: nodes report
+ * true numbers of children, children are listed in pages when tree asks for them (i.e. when they are painted) and
+ * only a limited number of pages is kept, so any instance is reachable by scrolling and memory doesn't grow with
+ * the number of nodes looked at. Pages are listed in background; until page arrives, its nodes are shown as
+ * "loading..." and then replaced with {@link TreeModelListener#treeNodesChanged} event.
+ * <p>
+ * Nodes are identified by their parent and index, so node replacing a placeholder (or a node of dropped and
+ * listed again page) is equal to it, and tree keeps its selection and expanded state. Tree must use fixed row height
+ * and {@link javax.swing.JTree#setLargeModel(boolean) large model}, so that it doesn't ask for all children of an
+ * expanded node.
+ * <p>
+ * Not thread-safe; used on EDT only.
+ */
+class DumpTreeModel implements TreeModel {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_CACHED_PAGES = 128;
+    private static final int MAX_PENDING_PAGES = 16;
+    private static final int RETRY_DELAY_MILLIS = 200;
+
+    private static final String LOADING_NODE_TEXT = "loading...";
+
+    private final HprofViewer viewer;
+    private final RootNode root;
+
+    private final EventListenerList listenerList = new EventListenerList();
+
+    private final Map<PageKey, Node[]> cachedPages = new LinkedHashMap<PageKey, Node[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PageKey, Node[]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+
+    private final Map<PageKey, CompletableFuture<?>> pendingPages = new HashMap<>();
+    private final Set<PageKey> rejectedPages = new HashSet<>();
+    private boolean pageRequestsSkipped;
+
+    DumpTreeModel(HprofViewer viewer) {
+        this.viewer = viewer;
+
+        root = new RootNode(viewer.listTypes());
+    }
+
+    @Override
+    public Object getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        if (parent == root) {
+            return root.getChild(index);
+        }
+
+        PagedNode pagedNode = (PagedNode) parent;
+        PageKey pageKey = new PageKey(pagedNode, index / PAGE_SIZE);
+
+        Node[] page = cachedPages.get(pageKey);
+
+        if (page == null) {
+            requestPage(pageKey);
+            return new TextNode(pagedNode, index, LOADING_NODE_TEXT);
+        }
+
+        int pageIndex = index % PAGE_SIZE;
+
+        // fewer children may be listed than reported, e.g. if type has instances that weren't indexed
+        return pageIndex < page.length ? page[pageIndex] : new TextNode(pagedNode, index, "<missing>");
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        return ((Node) parent).getChildCount();
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return ((Node) node).getChildCount() == 0;
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // not editable
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (parent == null || !(child instanceof Node) || !parent.equals(((Node) child).parent)) {
+            return -1;
+        }
+
+        return ((Node) child).index;
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener l) {
+        listenerList.add(TreeModelListener.class, l);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener l) {
+        listenerList.remove(TreeModelListener.class, l);
+    }
+
+    /**
+     * @return node at given path as it is now, e.g. listed node in place of a placeholder which was selected
+     */
+    Object getCurrentNode(TreePath path) {
+        Node node = (Node) path.getLastPathComponent();
+
+        return node.parent == null ? root : getChild(node.parent, node.index);
+    }
+
+    /**
+     * Drops listed children of collapsed node and its descendants and cancels listing of their pages.
+     */
+    void releaseChildren(Object collapsedNode) {
+        Iterator<Map.Entry<PageKey, CompletableFuture<?>>> pendingPagesIterator = pendingPages.entrySet().iterator();
+
+        while (pendingPagesIterator.hasNext()) {
+            Map.Entry<PageKey, CompletableFuture<?>> entry = pendingPagesIterator.next();
+
+            if (entry.getKey().parent.isDescendantOf((Node) collapsedNode)) {
+                entry.getValue().cancel(false);
+                pendingPagesIterator.remove();
+            }
+        }
+
+        cachedPages.keySet().removeIf(pageKey -> pageKey.parent.isDescendantOf((Node) collapsedNode));
+        rejectedPages.removeIf(pageKey -> pageKey.parent.isDescendantOf((Node) collapsedNode));
+    }
+
+    /**
+     * Cancels listing of all pages; model is not used after that.
+     */
+    void dispose() {
+        pendingPages.values().forEach(future -> future.cancel(false));
+        pendingPages.clear();
+        cachedPages.clear();
+        rejectedPages.clear();
+    }
+
+    private void requestPage(PageKey pageKey) {
+        if (pendingPages.containsKey(pageKey)) {
+            return;
+        }
+
+        if (pendingPages.size() >= MAX_PENDING_PAGES) {
+            // page is requested again when the whole tree is repainted after one of pending pages arrives
+            pageRequestsSkipped = true;
+            return;
+        }
+
+        int offset = pageKey.pageIdx * PAGE_SIZE;
+        int limit = Math.min(PAGE_SIZE, pageKey.parent.getChildCount() - offset);
+
+        CompletableFuture<? extends List<?>> future = pageKey.parent.listChildren(viewer, offset, limit);
+
+        pendingPages.put(pageKey, future);
+
+        future.whenCompleteAsync((children, error) -> {
+            if (pendingPages.get(pageKey) != future) {
+                return; // cancelled
+            }
+
+            pendingPages.remove(pageKey);
+
+            Node[] page;
+
+            if (error instanceof RejectedExecutionException) {
+                // viewer is busy with other queries; retrying unless parent is collapsed meanwhile
+                rejectedPages.add(pageKey);
+
+                Timer retryTimer = new Timer(RETRY_DELAY_MILLIS, e -> {
+                    if (rejectedPages.remove(pageKey)) {
+                        requestPage(pageKey);
+                    }
+                });
+                retryTimer.setRepeats(false);
+                retryTimer.start();
+                return;
+            } else if (error != null) {
+                error.printStackTrace();
+
+                page = new Node[limit];
+
+                for (int i = 0; i < limit; i++) {
+                    page[i] = new TextNode(pageKey.parent, offset + i, "<failed to load: " + error.getMessage() + ">");
+                }
+            } else {
+                page = new Node[children.size()];
+
+                for (int i = 0; i < children.size(); i++) {
+                    page[i] = pageKey.parent.createChild(children.get(i), offset + i);
+                }
+            }
+
+            cachedPages.put(pageKey, page);
+
+            fireTreeNodesChanged(pageKey, limit);
+
+            if (pageRequestsSkipped) {
+                pageRequestsSkipped = false;
+                fireRootChanged();
+            }
+        }, SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Makes tree repaint all visible rows (and so ask for their nodes again), not just the rows from the changed ones
+     * down.
+     */
+    private void fireRootChanged() {
+        TreeModelEvent event = new TreeModelEvent(this, root.getPath());
+
+        for (TreeModelListener listener : listenerList.getListeners(TreeModelListener.class)) {
+            listener.treeNodesChanged(event);
+        }
+    }
+
+    private void fireTreeNodesChanged(PageKey pageKey, int childrenCount) {
+        int[] childIndices = new int[childrenCount];
+        Object[] children = new Object[childrenCount];
+
+        for (int i = 0; i < childrenCount; i++) {
+            childIndices[i] = pageKey.pageIdx * PAGE_SIZE + i;
+            children[i] = getChild(pageKey.parent, childIndices[i]);
+        }
+
+        TreeModelEvent event = new TreeModelEvent(this, pageKey.parent.getPath(), childIndices, children);
+
+        for (TreeModelListener listener : listenerList.getListeners(TreeModelListener.class)) {
+            listener.treeNodesChanged(event);
+        }
+    }
+
+    /**
+     * Node of dump tree; equal to other node with the same parent and index.
+     */
+    abstract static class Node {
+        final Node parent;
+        final int index;
+
+        private final int hashCode;
+
+        Node(Node parent, int index) {
+            this.parent = parent;
+            this.index = index;
+
+            hashCode = parent == null ? 0 : 31 * parent.hashCode + index + 1;
+        }
+
+        int getChildCount() {
+            return 0;
+        }
+
+        TreePath getPath() {
+            return parent == null ? new TreePath(this) : parent.getPath().pathByAddingChild(this);
+        }
+
+        boolean isDescendantOf(Node node) {
+            for (Node ancestor = this; ancestor != null; ancestor = ancestor.parent) {
+                if (ancestor.equals(node)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Node node = (Node) o;
+            return index == node.index && hashCode == node.hashCode && Objects.equals(parent, node.parent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Node, which children are listed in pages.
+     */
+    abstract static class PagedNode extends Node {
+        PagedNode(Node parent, int index) {
+            super(parent, index);
+        }
+
+        abstract CompletableFuture<? extends List<?>> listChildren(HprofViewer viewer, int offset, int limit);
+
+        abstract Node createChild(Object child, int index);
+    }
+
+    private static class RootNode extends Node {
+        private final List<TypeNode> typeNodes;
+
+        private RootNode(List<HeapDumpType> types) {
+            super(null, 0);
+
+            typeNodes = new ArrayList<>(types.size());
+
+            for (int i = 0; i < types.size(); i++) {
+                typeNodes.add(new TypeNode(this, i, types.get(i)));
+            }
+        }
+
+        @Override
+        int getChildCount() {
+            return typeNodes.size();
+        }
+
+        Node getChild(int index) {
+            return typeNodes.get(index);
+        }
+
+        @Override
+        public String toString() {
+            return "Types";
+        }
+    }
+
+    static class TypeNode extends PagedNode {
+        final HeapDumpType viewerType;
+
+        private TypeNode(Node parent, int index, HeapDumpType viewerType) {
+            super(parent, index);
+            this.viewerType = viewerType;
+        }
+
+        @Override
+        int getChildCount() {
+            return (int) Math.min(viewerType.getInstancesCount(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        CompletableFuture<? extends List<?>> listChildren(HprofViewer viewer, int offset, int limit) {
+            if (viewerType instanceof HeapDumpClass) {
+                return viewer.listClassInstancesAsync(((HeapDumpClass) viewerType).getClassId(), offset, limit);
+            } else if (viewerType instanceof HeapDumpObjectArray) {
+                return viewer.listObjectArrayInstancesAsync(((HeapDumpObjectArray) viewerType).getElementClassId(),
+                                                            offset, limit);
+            } else { // HeapDumpPrimitiveArray
+                return viewer.listPrimitiveArrayInstancesAsync(
+                    ((HeapDumpPrimitiveArray) viewerType).getPrimitiveType(), offset, limit);
+            }
+        }
+
+        @Override
+        Node createChild(Object child, int index) {
+            if (child instanceof HeapDumpClassInstance) {
+                return new InstanceNode(this, index, (HeapDumpClassInstance) child, false);
+            } else {
+                return new ArrayNode(this, index, (HeapDumpArrayInstance) child);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d)", viewerType.getName(), viewerType.getInstancesCount());
+        }
+    }
+
+    static class ArrayNode extends PagedNode {
+        final HeapDumpArrayInstance array;
+
+        private ArrayNode(Node parent, int index, HeapDumpArrayInstance array) {
+            super(parent, index);
+            this.array = array;
+        }
+
+        @Override
+        int getChildCount() {
+            return array.getLength();
+        }
+
+        @Override
+        CompletableFuture<? extends List<?>> listChildren(HprofViewer viewer, int offset, int limit) {
+            if (array instanceof HeapDumpObjectArrayInstance) {
+                return viewer.listObjectArrayElementsAsync(array.getId(), offset, limit);
+            } else {
+                return viewer.listPrimitiveArrayElementsAsync(array.getId(), offset, limit);
+            }
+        }
+
+        @Override
+        Node createChild(Object child, int index) {
+            if (child == null) {
+                return new TextNode(this, index, String.format("#%d <null>", index + 1));
+            } else if (child instanceof String) { // primitive value
+                return new TextNode(this, index, String.format("#%d %s", index + 1, child));
+            } else if (child instanceof HeapDumpClassObject) {
+                return new TextNode(this, index, String.format(
+                    "#%d <Class<%s>>", index + 1, ((HeapDumpClassObject) child).getClassName()));
+            } else if (child instanceof HeapDumpClassInstance) {
+                return new InstanceNode(this, index, (HeapDumpClassInstance) child, true);
+            } else if (child instanceof HeapDumpArrayInstance) {
+                return new ArrayNode(this, index, (HeapDumpArrayInstance) child);
+            } else {
+                throw new RuntimeException("unexpected object type");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d [%d]", index + 1, array.getLength());
+        }
+    }
+
+    static class InstanceNode extends Node {
+        final HeapDumpClassInstance instance;
+        final boolean showClassInToString;
+
+        private InstanceNode(Node parent, int index, HeapDumpClassInstance instance, boolean showClassInToString) {
+            super(parent, index);
+            this.instance = instance;
+            this.showClassInToString = showClassInToString;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %s", index + 1, showClassInToString ? instance.getClassName() : "");
+        }
+    }
+
+    private static class TextNode extends Node {
+        private final String text;
+
+        private TextNode(Node parent, int index, String text) {
+            super(parent, index);
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static class PageKey {
+        final PagedNode parent;
+        final int pageIdx;
+
+        private PageKey(PagedNode parent, int pageIdx) {
+            this.parent = parent;
+            this.pageIdx = pageIdx;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            PageKey pageKey = (PageKey) o;
+            return pageIdx == pageKey.pageIdx && parent.equals(pageKey.parent);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * parent.hashCode() + pageIdx;
+        }
+    }
+}
@@ -1,367 +1,110 @@
 package org.gsoft.showcase.hprof.viewer.gui;
 
-import javax.swing.JComponent;
 import org.gsoft.showcase.hprof.viewer.HprofViewer;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpArrayInstance;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClass;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.CancellationToken;
 import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstance;
 import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstanceClassInstanceField;
 import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstanceField;
 import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstanceObjectArrayField;
 import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstanceObjectField;
 import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstancePrimitiveArrayField;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassObject;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpObject;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpObjectArray;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpPrimitiveArray;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpPrimitiveArrayInstance;
-import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpType;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.LoadingPhase;
+import org.gsoft.showcase.hprof.viewer.gui.DumpTreeModel.InstanceNode;
+import org.gsoft.showcase.hprof.viewer.gui.DumpTreeModel.PagedNode;
 import org.gsoft.showcase.hprof.viewer.gui.util.NonEditableDefaultTableModel;
 import org.gsoft.showcase.hprof.viewer.gui.util.ObjectViewUtil;
 import java.awt.event.MouseEvent;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.function.BiFunction;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTable;
+import javax.swing.JTextField;
 import javax.swing.JTree;
-import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.WindowConstants;
 import javax.swing.event.MouseInputAdapter;
 import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
 import javax.swing.event.TreeWillExpandListener;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableModel;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
-import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreePath;
 
 public class MainViewerForm extends JFrame {
 
-    private static final int CLASS_INSTANCES_BATCH_SIZE = 10;
+    /**
+     * System property with cap of memory taken by objects cached by viewer of shown dump, in megabytes (see
+     * {@link HprofViewer#setDecodedObjectsCacheMaxWeight(long)}); e.g. {@code -Dhprof.viewer.cacheMegabytes=64} in IDE
+     * VM options. Viewer default is kept if not set.
+     */
+    public static final String CACHE_MEGABYTES_PROPERTY = "hprof.viewer.cacheMegabytes";
 
     private JButton loadDumpButton;
     private JTree dumpTree;
     private JPanel rootPanel;
     private JTable objectPropertiesTable;
+    private JTextField jumpToIndexField;
 
-    private DefaultTreeModel dumpTreeModel;
+    private DumpTreeModel dumpTreeModel;
     private HprofViewer viewer;
 
     private HeapDumpClassInstance selectedClassInstance;
     private ObjectViewerForm objectViewerForm;
 
+    private Runnable loadDumpAction = this::chooseAndLoadDump;
+
     public MainViewerForm() {
         setTitle("Hprof Viewer");
         setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
 
-        dumpTreeModel = new DefaultTreeModel(new DefaultMutableTreeNode("Use \"Load dump...\" to open .hprof file"));
-        dumpTree.setModel(dumpTreeModel);
+        dumpTree.setModel(new DefaultTreeModel(new DefaultMutableTreeNode("Use \"Load dump...\" to open .hprof file")));
+
+        // dump tree model has millions of nodes; large model only asks it for the rows being painted
+        dumpTree.setRowHeight(dumpTree.getCellRenderer()
+                                  .getTreeCellRendererComponent(dumpTree, "#", false, false, true, 0, false)
+                                  .getPreferredSize().height);
+        dumpTree.setLargeModel(true);
 
         clearObjectPropertiesTableAndShowHint();
 
         setContentPane(rootPanel);
         pack();
 
-        loadDumpButton.addActionListener(e -> {
-            JFileChooser fileChooser = new JFileChooser();
-
-            int result = fileChooser.showOpenDialog(MainViewerForm.this);
-
-            if (result == JFileChooser.APPROVE_OPTION) {
-                File selectedFile = fileChooser.getSelectedFile();
-
-                loadDumpButton.setEnabled(false);
-
-                WaitDialog waitDialog = new WaitDialog();
-                waitDialog.setLocationRelativeTo(MainViewerForm.this);
+        loadDumpButton.addActionListener(e -> loadDumpAction.run());
 
-                SwingUtilities.invokeLater(() -> {
-                    try {
-                        viewer = new HprofViewer(selectedFile);
-                        fillTypeNodes();
-                    } catch (Throwable t) {
-                        showError(t, "Failed to load dump!");
-                        t.printStackTrace();
-                    }
-                    waitDialog.dispose();
-                    loadDumpButton.setEnabled(true);
-                });
-
-                waitDialog.setVisible(true);
-            }
-        });
+        jumpToIndexField.addActionListener(e -> jumpToIndex());
 
         dumpTree.addTreeSelectionListener(e -> {
             if (e.getNewLeadSelectionPath() == null) {
                 clearObjectPropertiesTableAndShowHint();
+                selectedClassInstance = null;
                 return;
             }
 
-            DefaultMutableTreeNode treeNode =
-                (DefaultMutableTreeNode) e.getNewLeadSelectionPath().getLastPathComponent();
-            if (treeNode.getUserObject() instanceof ClassInstanceNodeData) {
-                ClassInstanceNodeData instanceData = (ClassInstanceNodeData) treeNode.getUserObject();
-                List<HeapDumpClassInstanceField> instanceFields = instanceData.viewerInstance.getInstanceFields();
-
-                TableModel model;
-
-                if (instanceFields.isEmpty()) {
-                    model = new NonEditableDefaultTableModel(new Object[] {""}, 1);
-                    model.setValueAt("<no visible fields>", 0, 0);
-                } else {
-                    model = new NonEditableDefaultTableModel(new Object[] {"field", "value"},
-                                                             instanceFields.size());
-
-                    for (int i = 0; i < instanceFields.size(); i++) {
-                        String fieldName = instanceFields.get(i).getFieldName();
-                        model.setValueAt(fieldName, i, 0);
-                        model.setValueAt(ObjectViewUtil.showFieldValue(instanceFields.get(i)), i, 1);
-                    }
-                }
-
-                objectPropertiesTable.setModel(model);
-
-                selectedClassInstance = instanceData.viewerInstance;
-
-            } else {
-                clearObjectPropertiesTableAndShowHint();
-
-                selectedClassInstance = null;
-
-                if (treeNode.getUserObject() instanceof LoadMoreInstancesPlaceholder) {
-                    LoadMoreInstancesPlaceholder placeholder = (LoadMoreInstancesPlaceholder) treeNode.getUserObject();
-
-                    DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) treeNode.getParent();
-
-                    if (parentNode.getUserObject() instanceof TypeNodeData) {
-                        TypeNodeData typeNodeData = (TypeNodeData) parentNode.getUserObject();
-
-                        if (typeNodeData.viewerType instanceof HeapDumpClass) {
-                            HeapDumpClass heapDumpClass = (HeapDumpClass) typeNodeData.viewerType;
-
-                            SwingUtilities.invokeLater(() -> {
-                                try {
-                                    List<HeapDumpClassInstance> instances =
-                                        viewer.listClassInstances(heapDumpClass.getClassId(),
-                                                                  placeholder.offset,
-                                                                  CLASS_INSTANCES_BATCH_SIZE);
-
-                                    treeNode.removeFromParent();
-
-                                    addClassInstancesToTypeNode(placeholder.offset, instances, parentNode);
-                                } catch (Throwable t) {
-                                    showError(t, "Failed to list children!");
-                                    t.printStackTrace();
-                                }
-                            });
-                        } else if (typeNodeData.viewerType instanceof HeapDumpObjectArray) {
-                            // TODO remove copy paste with above
-                            HeapDumpObjectArray objectArray = (HeapDumpObjectArray) typeNodeData.viewerType;
-
-                            SwingUtilities.invokeLater(() -> {
-                                try {
-                                    List<HeapDumpArrayInstance> instances =
-                                        viewer.listObjectArrayInstances(objectArray.getElementClassId(),
-                                                                        placeholder.offset,
-                                                                        CLASS_INSTANCES_BATCH_SIZE);
-
-                                    treeNode.removeFromParent();
-
-                                    addArrayInstancesToTypeNode(placeholder.offset, instances, parentNode);
-                                } catch (Throwable t) {
-                                    showError(t, "Failed to list children!");
-                                    t.printStackTrace();
-                                }
-                            });
-                        } else if (typeNodeData.viewerType instanceof HeapDumpPrimitiveArray) {
-                            // TODO remove copy paste with above
-                            HeapDumpPrimitiveArray primitiveArray = (HeapDumpPrimitiveArray) typeNodeData.viewerType;
-
-                            SwingUtilities.invokeLater(() -> {
-                                try {
-                                    List<HeapDumpArrayInstance> instances =
-                                        viewer.listPrimitiveArrayInstances(primitiveArray.getPrimitiveType(),
-                                                                           placeholder.offset,
-                                                                           CLASS_INSTANCES_BATCH_SIZE);
-
-                                    treeNode.removeFromParent();
-
-                                    addArrayInstancesToTypeNode(placeholder.offset, instances, parentNode);
-                                } catch (Throwable t) {
-                                    showError(t, "Failed to list children!");
-                                    t.printStackTrace();
-                                }
-                            });
-                        }
-                    } else if (parentNode.getUserObject() instanceof ArrayInstanceNodeData) {
-                        ArrayInstanceNodeData arrayInstanceNodeData =
-                            (ArrayInstanceNodeData) parentNode.getUserObject();
-
-                        if (arrayInstanceNodeData.isPrimitive) {
-                            SwingUtilities.invokeLater(() -> {
-                                try {
-                                    List<String> values = viewer.listPrimitiveArrayElements(arrayInstanceNodeData.id,
-                                                                                            placeholder.offset,
-                                                                                            CLASS_INSTANCES_BATCH_SIZE);
-
-                                    treeNode.removeFromParent();
-
-                                    // TODO remove copy paste
-                                    addLoadableObjectsToNode(placeholder.offset, values,
-                                                             (value, index) ->
-                                                                 new DefaultMutableTreeNode(
-                                                                     String.format("#%d %s", index + 1, value)),
-                                                             parentNode);
-                                } catch (Throwable t) {
-                                    showError(t, "Failed to list children!");
-                                    t.printStackTrace();
-                                }
-                            });
-                        } else {
-                            SwingUtilities.invokeLater(() -> {
-                                try {
-                                    List<HeapDumpObject> objects =
-                                        viewer.listObjectArrayElements(arrayInstanceNodeData.id, 0,
-                                                                       CLASS_INSTANCES_BATCH_SIZE);
-
-                                    treeNode.removeFromParent();
-
-                                    // TODO remove copy paste
-                                    addLoadableObjectsToNode(placeholder.offset, objects, (heapDumpObject, index) -> {
-                                        if (heapDumpObject == null) {
-                                            return new DefaultMutableTreeNode(String.format("#%d <null>", index + 1));
-                                        } else if (heapDumpObject instanceof HeapDumpClassObject) {
-                                            HeapDumpClassObject classObject = (HeapDumpClassObject) heapDumpObject;
-                                            return new DefaultMutableTreeNode(String.format(
-                                                "#%d <Class<%s>>", index + 1, classObject.getClassName()));
-                                        } else if (heapDumpObject instanceof HeapDumpClassInstance) {
-                                            return createClassInstanceTreeNode(
-                                                (HeapDumpClassInstance) heapDumpObject, index, true);
-                                        } else if (heapDumpObject instanceof HeapDumpArrayInstance) {
-                                            return createArrayTreeNode((HeapDumpArrayInstance) heapDumpObject, index);
-                                        } else {
-                                            throw new RuntimeException("unexpected object type");
-                                        }
-                                    }, parentNode);
-                                } catch (Throwable t) {
-                                    showError(t, "Failed to list children!");
-                                    t.printStackTrace();
-                                }
-                            });
-                        }
-                    }
-                }
-            }
+            showNodeProperties(e.getNewLeadSelectionPath().getLastPathComponent());
         });
 
         dumpTree.addTreeWillExpandListener(new TreeWillExpandListener() {
             @Override
             public void treeWillExpand(TreeExpansionEvent event) {
-                DefaultMutableTreeNode treeNode = (DefaultMutableTreeNode) event.getPath().getLastPathComponent();
-
-                if (treeNode.getUserObject() instanceof TypeNodeData) {
-                    if (!treeNode.getChildAt(0).toString().equals("loading...")) {
-                        // we have already loaded some children
-                        return;
-                    }
-
-                    TypeNodeData typeData = (TypeNodeData) treeNode.getUserObject();
-
-                    if (typeData.viewerType instanceof HeapDumpClass) {
-                        SwingUtilities.invokeLater(() -> {
-                            try {
-                                List<HeapDumpClassInstance> instances =
-                                    viewer.listClassInstances(((HeapDumpClass) typeData.viewerType).getClassId(),
-                                                              0, CLASS_INSTANCES_BATCH_SIZE);
-
-                                treeNode.removeAllChildren();
-
-                                addClassInstancesToTypeNode(0, instances, treeNode);
-                            } catch (Throwable t) {
-                                showError(t, "Failed to list children!");
-                                t.printStackTrace();
-                            }
-                        });
-                    } else if (typeData.viewerType instanceof HeapDumpObjectArray) {
-                        SwingUtilities.invokeLater(() -> {
-                            try {
-                                List<HeapDumpArrayInstance> instances = viewer.listObjectArrayInstances(
-                                    ((HeapDumpObjectArray) typeData.viewerType).getElementClassId(),
-                                    0, CLASS_INSTANCES_BATCH_SIZE);
-
-                                treeNode.removeAllChildren();
-
-                                addArrayInstancesToTypeNode(0, instances, treeNode);
-                            } catch (Throwable t) {
-                                showError(t, "Failed to list children!");
-                                t.printStackTrace();
-                            }
-                        });
-                    } else if (typeData.viewerType instanceof HeapDumpPrimitiveArray) {
-                        SwingUtilities.invokeLater(() -> {
-                            try {
-                                List<HeapDumpArrayInstance> instances = viewer.listPrimitiveArrayInstances(
-                                    ((HeapDumpPrimitiveArray) typeData.viewerType).getPrimitiveType(),
-                                    0, CLASS_INSTANCES_BATCH_SIZE);
-
-                                treeNode.removeAllChildren();
-
-                                addArrayInstancesToTypeNode(0, instances, treeNode);
-                            } catch (Throwable t) {
-                                showError(t, "Failed to list children!");
-                                t.printStackTrace();
-                            }
-                        });
-                    }
-                } else if (treeNode.getUserObject() instanceof ArrayInstanceNodeData) {
-                    ArrayInstanceNodeData arrayData = (ArrayInstanceNodeData) treeNode.getUserObject();
-
-                    if (arrayData.isPrimitive) {
-                        List<String> values = viewer.listPrimitiveArrayElements(arrayData.id,
-                                                                                0,
-                                                                                CLASS_INSTANCES_BATCH_SIZE);
-
-                        treeNode.removeAllChildren();
-
-                        addLoadableObjectsToNode(0, values,
-                                                 (value, index) ->
-                                                     new DefaultMutableTreeNode(
-                                                         String.format("#%d %s", index + 1, value)),
-                                                 treeNode);
-                    } else {
-                        List<HeapDumpObject> objects = viewer.listObjectArrayElements(arrayData.id,
-                                                                                        0,
-                                                                                        CLASS_INSTANCES_BATCH_SIZE);
-
-                        treeNode.removeAllChildren();
-
-                        addLoadableObjectsToNode(0, objects, (heapDumpObject, index) -> {
-                            if (heapDumpObject == null) {
-                                return new DefaultMutableTreeNode(String.format("#%d <null>", index + 1));
-                            } else if (heapDumpObject instanceof HeapDumpClassObject) {
-                                HeapDumpClassObject classObject = (HeapDumpClassObject) heapDumpObject;
-                                return new DefaultMutableTreeNode(String.format(
-                                    "#%d <Class<%s>>", index + 1, classObject.getClassName()));
-                            } else if (heapDumpObject instanceof HeapDumpClassInstance) {
-                                return createClassInstanceTreeNode((HeapDumpClassInstance) heapDumpObject, index, true);
-                            } else if (heapDumpObject instanceof HeapDumpArrayInstance) {
-                                return createArrayTreeNode((HeapDumpArrayInstance) heapDumpObject, index);
-                            } else {
-                                throw new RuntimeException("unexpected object type");
-                            }
-                        }, treeNode);
-                    }
-                }
+                // children are listed when tree asks for them
             }
 
             @Override
             public void treeWillCollapse(TreeExpansionEvent event) {
-                // TODO free objects?
+                if (dumpTreeModel != null) {
+                    dumpTreeModel.releaseChildren(event.getPath().getLastPathComponent());
+                }
             }
         });
 
@@ -391,7 +134,7 @@ public class MainViewerForm extends JFrame {
                 ensureObjectViewerIsPresentAndFocused();
 
                 if (instanceObjectField instanceof HeapDumpClassInstanceClassInstanceField) {
-                    objectViewerForm.showInstance(viewer.showClassInstance(objIdToView));
+                    objectViewerForm.showInstance(objIdToView);
                 } else if (instanceObjectField instanceof HeapDumpClassInstanceObjectArrayField) {
                     objectViewerForm.showObjectArray(objIdToView);
                 } else if (instanceObjectField instanceof HeapDumpClassInstancePrimitiveArrayField) {
@@ -403,20 +146,20 @@ public class MainViewerForm extends JFrame {
         dumpTree.addMouseListener(new MouseInputAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
-                if (e.getClickCount() != 2 || dumpTree.getLastSelectedPathComponent() == null) {
+                if (e.getClickCount() != 2 || dumpTreeModel == null || dumpTree.getSelectionPath() == null) {
                     return;
                 }
 
-                DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) dumpTree.getLastSelectedPathComponent();
+                // selected node may be a placeholder of the instance listed since then
+                Object selectedNode = dumpTreeModel.getCurrentNode(dumpTree.getSelectionPath());
 
-                if (!(selectedNode.getUserObject() instanceof ClassInstanceNodeData)) {
+                if (!(selectedNode instanceof InstanceNode)) {
                     return;
                 }
 
                 ensureObjectViewerIsPresentAndFocused();
 
-                ClassInstanceNodeData instanceNodeData = (ClassInstanceNodeData) selectedNode.getUserObject();
-                objectViewerForm.showInstance(instanceNodeData.viewerInstance);
+                objectViewerForm.showInstance(((InstanceNode) selectedNode).instance);
             }
         });
     }
@@ -435,138 +178,274 @@ public class MainViewerForm extends JFrame {
                                       "Error", JOptionPane.ERROR_MESSAGE);
     }
 
-    private void fillTypeNodes() {
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode("Types");
+    public static String describeLoadingPhase(LoadingPhase phase, long objectsIndexed) {
+        switch (phase) {
+            case LOADING_INDEX:
+                return "Loading index...";
+            case SCANNING_RECORDS:
+                return "Scanning records...";
+            case INDEXING_OBJECTS:
+                return String.format("Indexing objects: %,d", objectsIndexed);
+            case MERGING_SHARDS:
+                return String.format("Merging indexes of %,d objects...", objectsIndexed);
+            case SCANNING_STRINGS:
+                return "Reading class names...";
+            default: // WRITING_INDEX
+                return String.format("Writing index of %,d objects...", objectsIndexed);
+        }
+    }
 
-        dumpTreeModel = new DefaultTreeModel(root);
+    /**
+     * Replaces loading of dump with "Load dump..." button, which by default asks for a file and loads it with
+     * progress shown in a wait dialog; e.g. IDE plugin loads dumps in IDE background tasks instead. Action should
+     * pass loaded dump to {@link #showDump(HprofViewer)}.
+     */
+    public void setLoadDumpAction(Runnable loadDumpAction) {
+        this.loadDumpAction = loadDumpAction;
+    }
 
-        viewer.listTypes().forEach(heapDumpType -> root.add(createTypeTreeNode(heapDumpType)));
+    /**
+     * Shows dump loaded elsewhere, e.g. by IDE background task. Viewer of previously shown dump is closed, along with
+     * its object viewer window.
+     */
+    public void showDump(HprofViewer viewer) {
+        HprofViewer previousViewer = this.viewer;
 
-        dumpTree.setModel(dumpTreeModel);
-    }
+        Integer cacheMegabytes = Integer.getInteger(CACHE_MEGABYTES_PROPERTY);
 
-    private MutableTreeNode createTypeTreeNode(HeapDumpType heapDumpType) {
-        TypeNodeData typeNodeData = new TypeNodeData(heapDumpType);
+        if (cacheMegabytes != null && cacheMegabytes >= 0) {
+            viewer.setDecodedObjectsCacheMaxWeight(cacheMegabytes * 1024L * 1024);
+        }
 
-        DefaultMutableTreeNode node = new DefaultMutableTreeNode(typeNodeData);
-        node.add(new DefaultMutableTreeNode("loading..."));
-        return node;
-    }
+        this.viewer = viewer;
+        fillTypeNodes();
+        disposeObjectViewer();
 
-    private MutableTreeNode createClassInstanceTreeNode(HeapDumpClassInstance instance,
-                                                        int index,
-                                                        boolean showClassInToString) {
-        DefaultMutableTreeNode node = new DefaultMutableTreeNode(new ClassInstanceNodeData(index,
-                                                                                           instance,
-                                                                                           showClassInToString));
-        node.setAllowsChildren(false);
-        return node;
+        if (previousViewer != null) {
+            previousViewer.close();
+        }
     }
 
-    private MutableTreeNode createArrayTreeNode(HeapDumpArrayInstance instance, int index) {
-        ArrayInstanceNodeData arrayNodeData =
-            new ArrayInstanceNodeData(instance.getId(), index, instance instanceof HeapDumpPrimitiveArrayInstance);
-        DefaultMutableTreeNode node = new DefaultMutableTreeNode(arrayNodeData);
-        node.add(new DefaultMutableTreeNode("loading..."));
-        return node;
-    }
+    /**
+     * Also closes viewer of shown dump, along with its object viewer window.
+     */
+    @Override
+    public void dispose() {
+        if (dumpTreeModel != null) {
+            dumpTreeModel.dispose();
+            dumpTreeModel = null;
+        }
+
+        disposeObjectViewer();
 
-    private void addClassInstancesToTypeNode(int offset,
-                                             List<HeapDumpClassInstance> instances,
-                                             DefaultMutableTreeNode typeNode) {
-        addLoadableObjectsToNode(offset, instances,
-                                 (instance, index) -> createClassInstanceTreeNode(instance, index, false),
-                                 typeNode);
+        if (viewer != null) {
+            viewer.close();
+            viewer = null;
+        }
+
+        super.dispose();
     }
 
-    private void addArrayInstancesToTypeNode(int offset,
-                                             List<HeapDumpArrayInstance> instances,
-                                             DefaultMutableTreeNode typeNode) {
-        addLoadableObjectsToNode(offset, instances,
-                                 this::createArrayTreeNode,
-                                 typeNode);
+    private void disposeObjectViewer() {
+        if (objectViewerForm != null) {
+            objectViewerForm.dispose();
+            objectViewerForm = null;
+        }
     }
 
-    private <T>
-    void addLoadableObjectsToNode(int offset, List<T> instances,
-                                  BiFunction<T, Integer, MutableTreeNode> childNodeCreatorFunction,
-                                  DefaultMutableTreeNode node) {
-        for (int i = 0; i < instances.size(); i++) {
-            node.add(childNodeCreatorFunction.apply(instances.get(i), offset + i));
+    private void fillTypeNodes() {
+        if (dumpTreeModel != null) {
+            dumpTreeModel.dispose();
         }
 
-        if (instances.size() == CLASS_INSTANCES_BATCH_SIZE) {
-            LoadMoreInstancesPlaceholder placeholder =
-                new LoadMoreInstancesPlaceholder(offset + CLASS_INSTANCES_BATCH_SIZE);
-            node.add(new DefaultMutableTreeNode(placeholder));
-        } // else we have no more instances
+        dumpTreeModel = new DumpTreeModel(viewer);
+
+        dumpTreeModel.addTreeModelListener(new TreeModelListener() {
+            @Override
+            public void treeNodesChanged(TreeModelEvent e) {
+                TreePath selectionPath = dumpTree.getSelectionPath();
+
+                // selected placeholder is replaced with listed node
+                if (selectionPath != null && selectedClassInstance == null
+                    && e.getTreePath().equals(selectionPath.getParentPath())) {
+                    showNodeProperties(dumpTreeModel.getCurrentNode(selectionPath));
+                }
+            }
+
+            @Override
+            public void treeNodesInserted(TreeModelEvent e) {
+            }
+
+            @Override
+            public void treeNodesRemoved(TreeModelEvent e) {
+            }
+
+            @Override
+            public void treeStructureChanged(TreeModelEvent e) {
+            }
+        });
 
-        dumpTreeModel.reload(node);
+        dumpTree.setModel(dumpTreeModel);
     }
 
-    private void clearObjectPropertiesTableAndShowHint() {
-        TableModel tableModel = new DefaultTableModel(new Object[]{""}, 1);
-        tableModel.setValueAt("Select object to view its properties", 0, 0);
-        objectPropertiesTable.setModel(tableModel);
+    private void showNodeProperties(Object treeNode) {
+        if (!(treeNode instanceof InstanceNode)) {
+            clearObjectPropertiesTableAndShowHint();
+            selectedClassInstance = null;
+            return;
+        }
+
+        HeapDumpClassInstance instance = ((InstanceNode) treeNode).instance;
+        List<HeapDumpClassInstanceField> instanceFields = instance.getInstanceFields();
+
+        TableModel model;
+
+        if (instanceFields.isEmpty()) {
+            model = new NonEditableDefaultTableModel(new Object[] {""}, 1);
+            model.setValueAt("<no visible fields>", 0, 0);
+        } else {
+            model = new NonEditableDefaultTableModel(new Object[] {"field", "value"},
+                                                     instanceFields.size());
+
+            for (int i = 0; i < instanceFields.size(); i++) {
+                String fieldName = instanceFields.get(i).getFieldName();
+                model.setValueAt(fieldName, i, 0);
+                model.setValueAt(ObjectViewUtil.showFieldValue(instanceFields.get(i)), i, 1);
+            }
+        }
+
+        objectPropertiesTable.setModel(model);
+
+        selectedClassInstance = instance;
     }
 
-    private static class TypeNodeData {
-        final HeapDumpType viewerType;
+    /**
+     * Selects instance or element with number entered in jump box among children of selected type or array (or of
+     * parent of selected instance); it's shown as "loading..." until its page is listed.
+     */
+    private void jumpToIndex() {
+        TreePath selectionPath = dumpTree.getSelectionPath();
 
-        private TypeNodeData(HeapDumpType viewerType) {
-            this.viewerType = viewerType;
+        if (dumpTreeModel == null || selectionPath == null) {
+            return;
         }
 
-        @Override
-        public String toString() {
-            return String.format("%s (%d)", viewerType.getName(), viewerType.getInstancesCount());
+        TreePath parentPath = selectionPath.getLastPathComponent() instanceof PagedNode
+                              ? selectionPath
+                              : selectionPath.getParentPath();
+
+        if (parentPath == null || !(parentPath.getLastPathComponent() instanceof PagedNode)) {
+            JOptionPane.showMessageDialog(MainViewerForm.this, "Select type or array to go to its instance or element",
+                                          "Go to #", JOptionPane.INFORMATION_MESSAGE);
+            return;
         }
-    }
 
-    private static class ClassInstanceNodeData {
-        final int index;
-        final HeapDumpClassInstance viewerInstance;
-        final boolean showClassInToString;
+        Object parentNode = parentPath.getLastPathComponent();
+        int childrenCount = dumpTreeModel.getChildCount(parentNode);
+
+        int number;
 
-        private ClassInstanceNodeData(int index, HeapDumpClassInstance viewerInstance, boolean showClassInToString) {
-            this.index = index;
-            this.viewerInstance = viewerInstance;
-            this.showClassInToString = showClassInToString;
+        try {
+            number = Integer.parseInt(jumpToIndexField.getText().trim().replace(",", ""));
+        } catch (NumberFormatException e) {
+            number = 0;
         }
 
-        @Override
-        public String toString() {
-            return String.format("#%d %s", index, showClassInToString ? viewerInstance.getClassName() : "");
+        if (number < 1 || number > childrenCount) {
+            JOptionPane.showMessageDialog(MainViewerForm.this,
+                                          String.format("Enter number from 1 to %,d", childrenCount),
+                                          "Go to #", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        TreePath childPath = parentPath.pathByAddingChild(dumpTreeModel.getChild(parentNode, number - 1));
+
+        dumpTree.setSelectionPath(childPath);
+        dumpTree.scrollPathToVisible(childPath);
+    }
+
+    private void chooseAndLoadDump() {
+        JFileChooser fileChooser = new JFileChooser();
+
+        int result = fileChooser.showOpenDialog(MainViewerForm.this);
+
+        if (result == JFileChooser.APPROVE_OPTION) {
+            File selectedFile = fileChooser.getSelectedFile();
+
+            loadDumpButton.setEnabled(false);
+
+            WaitDialog waitDialog = new WaitDialog();
+            waitDialog.setLocationRelativeTo(MainViewerForm.this);
+
+            new DumpLoadingWorker(selectedFile, waitDialog).execute();
+
+            waitDialog.setVisible(true);
         }
     }
 
-    private static class ArrayInstanceNodeData {
-        final long id;
-        final int index;
-        final boolean isPrimitive;
+    private void clearObjectPropertiesTableAndShowHint() {
+        TableModel tableModel = new DefaultTableModel(new Object[]{""}, 1);
+        tableModel.setValueAt("Select object to view its properties", 0, 0);
+        objectPropertiesTable.setModel(tableModel);
+    }
+
+    /**
+     * Loads dump off EDT, showing progress in wait dialog, which also lets user cancel loading.
+     */
+    private class DumpLoadingWorker extends SwingWorker<HprofViewer, LoadingStatus> {
+        private final File dumpFile;
+        private final WaitDialog waitDialog;
+        private final CancellationToken cancellationToken = new CancellationToken();
+
+        DumpLoadingWorker(File dumpFile, WaitDialog waitDialog) {
+            this.dumpFile = dumpFile;
+            this.waitDialog = waitDialog;
 
-        private ArrayInstanceNodeData(long id, int index, boolean isPrimitive) {
-            this.id = id;
-            this.index = index;
-            this.isPrimitive = isPrimitive;
+            waitDialog.setCancelListener(cancellationToken::cancel);
         }
 
         @Override
-        public String toString() {
-            return "#" + (index + 1);
+        protected HprofViewer doInBackground() throws IOException {
+            return new HprofViewer(dumpFile, (phase, phaseBytesDone, phaseBytesSize, objectsIndexed) -> publish(
+                new LoadingStatus(describeLoadingPhase(phase, objectsIndexed), phaseBytesDone, phaseBytesSize)),
+                                   cancellationToken);
         }
-    }
-
-    private static class LoadMoreInstancesPlaceholder {
-        final int offset;
 
-        private LoadMoreInstancesPlaceholder(int offset) {
-            this.offset = offset;
+        @Override
+        protected void process(List<LoadingStatus> statuses) {
+            LoadingStatus latestStatus = statuses.get(statuses.size() - 1);
+            waitDialog.showProgress(latestStatus.text, latestStatus.done, latestStatus.total);
         }
 
         @Override
-        public String toString() {
-            return "load more....";
+        protected void done() {
+            waitDialog.dispose();
+            loadDumpButton.setEnabled(true);
+
+            try {
+                showDump(get());
+            } catch (ExecutionException e) {
+                // nothing to report if cancelled by user
+                if (!(e.getCause() instanceof CancellationException)) {
+                    showError(e.getCause(), "Failed to load dump!");
+                    e.getCause().printStackTrace();
+                }
+            } catch (Throwable t) {
+                showError(t, "Failed to load dump!");
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private static class LoadingStatus {
+        final String text;
+        final long done;
+        final long total;
+
+        private LoadingStatus(String text, long done, long total) {
+            this.text = text;
+            this.done = done;
+            this.total = total;
         }
     }
 
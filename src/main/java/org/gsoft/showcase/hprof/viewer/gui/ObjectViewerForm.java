@@ -12,21 +12,40 @@ import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpObjectArrayInstance;
 import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpPrimitiveArrayInstance;
 import org.gsoft.showcase.hprof.viewer.gui.util.NonEditableDefaultTableModel;
 import org.gsoft.showcase.hprof.viewer.gui.util.ObjectViewUtil;
+import java.awt.Point;
 import java.awt.event.MouseEvent;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTable;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
 import javax.swing.event.MouseInputAdapter;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
 
+/**
+ * Shows instances and arrays one at a time, with history to go back and forth.
+ * <p>
+ * History keeps only ids of objects and state of their views (scroll position, selected row, array length): object
+ * is read again each time it is shown, which mostly takes it from viewer's cache of decoded objects (see
+ * {@link MainViewerForm#CACHE_MEGABYTES_PROPERTY}), so the form itself holds only the shown instance or a
+ * window of a few pages of shown array, however long the history is.
+ */
 public class ObjectViewerForm extends JFrame {
 
-    private static final int ARRAY_ELEMENTS_BATCH_SIZE = 10;
+    private static final int ARRAY_ELEMENTS_PAGE_SIZE = 50;
+
+    // pages of shown array which are kept; enough to fill the table, others are listed again when scrolled to
+    private static final int MAX_ARRAY_WINDOW_PAGES = 8;
 
     private JTable objectPropertiesTable;
     private JPanel rootPanel;
@@ -44,31 +63,18 @@ public class ObjectViewerForm extends JFrame {
         setLocationRelativeTo(parent);
         setDefaultCloseOperation(DISPOSE_ON_CLOSE);
 
-        addWindowListener(new WindowAdapter() {
-            @Override
-            public void windowClosing(WindowEvent e) {
-                objectHistoryList = null;
-            }
-        });
+        prevButton.addActionListener(e -> goToObject(instanceHistoryPosition - 1));
 
-        prevButton.addActionListener(e -> goToObject(--instanceHistoryPosition));
-
-        nextButton.addActionListener(e -> goToObject(++instanceHistoryPosition));
+        nextButton.addActionListener(e -> goToObject(instanceHistoryPosition + 1));
 
         objectPropertiesTable.addMouseListener(new MouseInputAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
-                if (objectPropertiesTable.getSelectedRow() == -1) {
+                if (e.getClickCount() != 2 || objectPropertiesTable.getSelectedRow() == -1) {
                     return;
                 }
 
-                ViewedObject currentViewedObject = objectHistoryList.get(instanceHistoryPosition);
-
-                if (e.getClickCount() == 2) {
-                    currentViewedObject.handleDoubleClick(objectPropertiesTable.getSelectedRow());
-                } else if (e.getClickCount() == 1) {
-                    currentViewedObject.handleClick(objectPropertiesTable.getSelectedRow());
-                }
+                objectHistoryList.get(instanceHistoryPosition).handleDoubleClick(objectPropertiesTable.getSelectedRow());
             }
         });
 
@@ -79,8 +85,31 @@ public class ObjectViewerForm extends JFrame {
         pack();
     }
 
+    /**
+     * Cancels queries of shown object; called when window is closed or when dump it shows is closed.
+     */
+    @Override
+    public void dispose() {
+        if (objectHistoryList != null) {
+            if (!objectHistoryList.isEmpty()) {
+                objectHistoryList.get(instanceHistoryPosition).hide();
+            }
+
+            objectHistoryList = null;
+        }
+
+        super.dispose();
+    }
+
     public void showInstance(HeapDumpClassInstance classInstance) {
-        addAndShowObject(new ViewedClassInstance(classInstance));
+        showInstance(classInstance.getId());
+    }
+
+    /**
+     * Shows instance, which is read in background.
+     */
+    public void showInstance(long instanceId) {
+        addAndShowObject(new ViewedClassInstance(instanceId));
     }
 
     public void showObjectArray(long arrayObjId) {
@@ -92,6 +121,10 @@ public class ObjectViewerForm extends JFrame {
     }
 
     private void addAndShowObject(ViewedObject object) {
+        if (!objectHistoryList.isEmpty()) {
+            objectHistoryList.get(instanceHistoryPosition).hide();
+        }
+
         if (instanceHistoryPosition < objectHistoryList.size() - 1) {
             objectHistoryList.subList(instanceHistoryPosition + 1, objectHistoryList.size()).clear();
         }
@@ -105,11 +138,25 @@ public class ObjectViewerForm extends JFrame {
     }
 
     private void goToObject(int newInstanceHistoryPosition) {
+        objectHistoryList.get(instanceHistoryPosition).hide();
+
         instanceHistoryPosition = newInstanceHistoryPosition;
         objectHistoryList.get(instanceHistoryPosition).show();
         updatePrevNextButtonsState();
     }
 
+    private void showText(String text) {
+        TableModel model = new NonEditableDefaultTableModel(new Object[] {""}, 1);
+        model.setValueAt(text, 0, 0);
+        objectPropertiesTable.setModel(model);
+    }
+
+    private void showError(Throwable t, String s) {
+        JOptionPane.showMessageDialog(ObjectViewerForm.this,
+                                      String.format(s + "\n%s: %s", t.getClass().getSimpleName(), t.getMessage()),
+                                      "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
     private void updatePrevNextButtonsState() {
         int lastHistoryPosition = objectHistoryList.size() - 1;
 
@@ -117,96 +164,278 @@ public class ObjectViewerForm extends JFrame {
         prevButton.setEnabled(instanceHistoryPosition > 0);
     }
 
-    private abstract static class ViewedObject {
+    /**
+     * Entry of history; object is read when entry is shown and dropped when it's hidden.
+     */
+    private abstract class ViewedObject {
+        protected final long objId;
+
+        // state of the view, restored when entry is shown again
+        private int selectedRow = -1;
+        private int firstVisibleRow;
+
+        private boolean rendered;
+        private CompletableFuture<?> pendingQuery;
+
+        protected ViewedObject(long objId) {
+            this.objId = objId;
+        }
+
         abstract void show();
-        abstract void handleClick(int elementIndex);
+
         abstract void handleDoubleClick(int elementIndex);
+
+        /**
+         * Called when another object is shown in place of this one.
+         */
+        void hide() {
+            if (rendered) {
+                selectedRow = objectPropertiesTable.getSelectedRow();
+                firstVisibleRow = Math.max(0, objectPropertiesTable.rowAtPoint(
+                    objectPropertiesTable.getVisibleRect().getLocation()));
+            }
+
+            rendered = false;
+
+            if (pendingQuery != null) {
+                pendingQuery.cancel(false);
+                pendingQuery = null;
+            }
+        }
+
+        /**
+         * Shows "loading..." until query completes and then passes its result to the consumer, unless entry is hidden
+         * meanwhile.
+         */
+        protected <T> void query(CompletableFuture<T> query, Consumer<T> resultConsumer) {
+            showText("loading...");
+
+            pendingQuery = query;
+
+            query.whenCompleteAsync((result, error) -> {
+                if (pendingQuery != query) {
+                    return; // cancelled
+                }
+
+                pendingQuery = null;
+
+                if (error != null) {
+                    showText("<failed to read object>");
+                    showError(error, "Failed to read object!");
+                    error.printStackTrace();
+                    return;
+                }
+
+                resultConsumer.accept(result);
+            }, SwingUtilities::invokeLater);
+        }
+
+        /**
+         * Called once table model of the object is set.
+         */
+        protected void restoreViewState() {
+            rendered = true;
+
+            int rowCount = objectPropertiesTable.getRowCount();
+
+            if (selectedRow >= 0 && selectedRow < rowCount) {
+                objectPropertiesTable.setRowSelectionInterval(selectedRow, selectedRow);
+            }
+
+            if (firstVisibleRow > 0 && firstVisibleRow < rowCount
+                && objectPropertiesTable.getParent() instanceof JViewport) {
+                JViewport viewport = (JViewport) objectPropertiesTable.getParent();
+                int firstVisibleRowY = objectPropertiesTable.getCellRect(firstVisibleRow, 0, true).y;
+
+                // once table is laid out with new rows
+                SwingUtilities.invokeLater(() -> {
+                    if (rendered) {
+                        viewport.setViewPosition(new Point(0, firstVisibleRowY));
+                    }
+                });
+            }
+        }
     }
 
+    /**
+     * Array, which elements are listed in pages when table asks for them; only a few recently painted pages are
+     * kept, and only while array is shown.
+     */
     private abstract class ViewedArrayObject<T> extends ViewedObject {
-        protected final long objId;
-        protected List<T> loadedElements;
-        private boolean hasMoreElements;
+        private int length = -1; // not known until array is shown first time
+        private ElementsTableModel elementsModel;
 
         protected ViewedArrayObject(long objId) {
-            this.objId = objId;
-
-            loadedElements = loadElements(0, ARRAY_ELEMENTS_BATCH_SIZE);
-            hasMoreElements = loadedElements.size() == ARRAY_ELEMENTS_BATCH_SIZE;
+            super(objId);
         }
 
-        abstract List<T> loadElements(int offset, int limit);
+        abstract CompletableFuture<List<T>> loadElements(int offset, int limit);
 
         abstract String getElementRowText(T element, int index);
 
         @Override
         void show() {
-            if (loadedElements.isEmpty()) {
-                TableModel model = new NonEditableDefaultTableModel(new Object[] {""}, 1);
-                model.setValueAt("<no elements>", 0, 0);
-                objectPropertiesTable.setModel(model);
+            if (length != -1) {
+                showElements();
                 return;
             }
 
-            TableModel model = new NonEditableDefaultTableModel(
-                new Object[] {""}, hasMoreElements ? loadedElements.size() + 1 : loadedElements.size());
-
-            for (int i = 0; i < loadedElements.size(); i++) {
-                model.setValueAt(getElementRowText(loadedElements.get(i), i), i, 0);
-            }
+            query(viewer.showArrayInstanceAsync(objId), arrayInstance -> {
+                length = arrayInstance.getLength();
+                showElements();
+            });
+        }
 
-            if (hasMoreElements) {
-                model.setValueAt("click to load more...", loadedElements.size(), 0);
+        private void showElements() {
+            if (length == 0) {
+                showText("<no elements>");
+            } else {
+                elementsModel = new ElementsTableModel();
+                objectPropertiesTable.setModel(elementsModel);
             }
 
-            objectPropertiesTable.setModel(model);
+            restoreViewState();
         }
 
         @Override
-        void handleClick(int elementIndex) {
-            if (elementIndex != loadedElements.size()) {
-                // only "click to load more..." is clickable
-                return;
+        void hide() {
+            super.hide();
+
+            if (elementsModel != null) {
+                elementsModel.dispose();
+                elementsModel = null;
             }
+        }
+
+        /**
+         * @return whether element is listed, so that it can be taken with {@link #getListedElement(int)}
+         */
+        protected boolean isElementListed(int elementIndex) {
+            return elementsModel != null && elementsModel.getListedPage(elementIndex) != null;
+        }
 
-            loadMoreAndUpdateModel();
+        protected T getListedElement(int elementIndex) {
+            return elementsModel.getListedPage(elementIndex).get(elementIndex % ARRAY_ELEMENTS_PAGE_SIZE);
         }
 
-        private void loadMoreAndUpdateModel() {
-            List<T> newElements = loadElements(loadedElements.size(), ARRAY_ELEMENTS_BATCH_SIZE);
+        private class ElementsTableModel extends AbstractTableModel {
+            private final Map<Integer, List<T>> windowPages = new LinkedHashMap<Integer, List<T>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+                    return size() > MAX_ARRAY_WINDOW_PAGES;
+                }
+            };
+
+            private final Map<Integer, CompletableFuture<List<T>>> pendingPages = new HashMap<>();
+            private boolean pageRequestsSkipped;
+
+            @Override
+            public int getRowCount() {
+                return length;
+            }
+
+            @Override
+            public int getColumnCount() {
+                return 1;
+            }
+
+            @Override
+            public String getColumnName(int column) {
+                return "";
+            }
+
+            @Override
+            public Object getValueAt(int rowIndex, int columnIndex) {
+                List<T> page = windowPages.get(rowIndex / ARRAY_ELEMENTS_PAGE_SIZE);
 
-            hasMoreElements = newElements.size() == ARRAY_ELEMENTS_BATCH_SIZE;
+                if (page == null) {
+                    requestPage(rowIndex / ARRAY_ELEMENTS_PAGE_SIZE);
+                    return "loading...";
+                }
+
+                int pageIndex = rowIndex % ARRAY_ELEMENTS_PAGE_SIZE;
+
+                return pageIndex < page.size() ? getElementRowText(page.get(pageIndex), rowIndex) : "<missing>";
+            }
 
-            NonEditableDefaultTableModel model = (NonEditableDefaultTableModel) objectPropertiesTable.getModel();
-            model.removeRow(loadedElements.size()); // "click to load more..." row
+            List<T> getListedPage(int elementIndex) {
+                List<T> page = windowPages.get(elementIndex / ARRAY_ELEMENTS_PAGE_SIZE);
 
-            for (int i = 0; i < newElements.size(); i++) {
-                model.addRow(new Object[]{getElementRowText(newElements.get(i), loadedElements.size() + i)});
+                return page != null && elementIndex % ARRAY_ELEMENTS_PAGE_SIZE < page.size() ? page : null;
             }
 
-            if (hasMoreElements) {
-                model.addRow(new Object[]{"click to load more..."});
+            void dispose() {
+                pendingPages.values().forEach(future -> future.cancel(false));
+                pendingPages.clear();
+                windowPages.clear();
             }
 
-            loadedElements.addAll(newElements);
+            private void requestPage(int pageIdx) {
+                if (pendingPages.containsKey(pageIdx)) {
+                    return;
+                }
+
+                if (pendingPages.size() >= MAX_ARRAY_WINDOW_PAGES) {
+                    // table is repainted once one of pending pages arrives
+                    pageRequestsSkipped = true;
+                    return;
+                }
+
+                int offset = pageIdx * ARRAY_ELEMENTS_PAGE_SIZE;
+                int limit = Math.min(ARRAY_ELEMENTS_PAGE_SIZE, length - offset);
+
+                CompletableFuture<List<T>> future = loadElements(offset, limit);
+
+                pendingPages.put(pageIdx, future);
+
+                future.whenCompleteAsync((elements, error) -> {
+                    if (pendingPages.get(pageIdx) != future) {
+                        return; // cancelled
+                    }
+
+                    pendingPages.remove(pageIdx);
+
+                    if (error != null) {
+                        // page is requested again when it's painted next time
+                        error.printStackTrace();
+                        return;
+                    }
+
+                    windowPages.put(pageIdx, elements);
+
+                    fireTableRowsUpdated(offset, offset + limit - 1);
+
+                    if (pageRequestsSkipped) {
+                        pageRequestsSkipped = false;
+                        objectPropertiesTable.repaint();
+                    }
+                }, SwingUtilities::invokeLater);
+            }
         }
     }
 
     private class ViewedClassInstance extends ViewedObject {
-        final HeapDumpClassInstance instance;
+        private HeapDumpClassInstance instance; // only while shown
 
-        private ViewedClassInstance(HeapDumpClassInstance instance) {
-            this.instance = instance;
+        private ViewedClassInstance(long instanceId) {
+            super(instanceId);
         }
 
         @Override
         void show() {
+            setTitle(String.format("Instance id=%s", objId));
+
+            query(viewer.showClassInstanceAsync(objId), this::showFields);
+        }
+
+        private void showFields(HeapDumpClassInstance instance) {
+            this.instance = instance;
+
             setTitle(String.format("%s id=%s", instance.getClassName(), instance.getId()));
 
             if (instance.getInstanceFields().isEmpty()) {
-                TableModel model = new NonEditableDefaultTableModel(new Object[] {""}, 1);
-                model.setValueAt("<no visible fields>", 0, 0);
-                objectPropertiesTable.setModel(model);
+                showText("<no visible fields>");
+                restoreViewState();
                 return;
             }
 
@@ -221,17 +450,24 @@ public class ObjectViewerForm extends JFrame {
             }
 
             objectPropertiesTable.setModel(model);
+
+            restoreViewState();
         }
 
         @Override
-        void handleClick(int elementIndex) {
-            // doing nothing
+        void hide() {
+            super.hide();
+
+            instance = null;
         }
 
         @Override
         void handleDoubleClick(int elementIndex) {
-            HeapDumpClassInstanceField instanceFieldToView =
-                instance.getInstanceFields().get(objectPropertiesTable.getSelectedRow());
+            if (instance == null || instance.getInstanceFields().isEmpty()) {
+                return;
+            }
+
+            HeapDumpClassInstanceField instanceFieldToView = instance.getInstanceFields().get(elementIndex);
 
             if (!(instanceFieldToView instanceof HeapDumpClassInstanceObjectField)) {
                 return;
@@ -244,7 +480,7 @@ public class ObjectViewerForm extends JFrame {
             }
 
             if (instanceFieldToView instanceof HeapDumpClassInstanceClassInstanceField) {
-                showInstance(viewer.showClassInstance(objId));
+                showInstance(objId);
             } else if (instanceFieldToView instanceof HeapDumpClassInstanceObjectArrayField) {
                 showObjectArray(objId);
             } else if (instanceFieldToView instanceof HeapDumpClassInstancePrimitiveArrayField) {
@@ -260,8 +496,8 @@ public class ObjectViewerForm extends JFrame {
         }
 
         @Override
-        List<HeapDumpObject> loadElements(int offset, int limit) {
-            return viewer.listObjectArrayElements(objId, offset, limit);
+        CompletableFuture<List<HeapDumpObject>> loadElements(int offset, int limit) {
+            return viewer.listObjectArrayElementsAsync(objId, offset, limit);
         }
 
         @Override
@@ -279,14 +515,14 @@ public class ObjectViewerForm extends JFrame {
 
         @Override
         void handleDoubleClick(int elementIndex) {
-            if (elementIndex == loadedElements.size()) {
-                // "click to load more..." is not double-clickable
+            if (!isElementListed(elementIndex)) {
+                // "loading..." is not double-clickable
                 return;
             }
 
-            HeapDumpObject objectToView = loadedElements.get(objectPropertiesTable.getSelectedRow());
+            HeapDumpObject objectToView = getListedElement(elementIndex);
 
-            if (objectToView.getId() == 0) {
+            if (objectToView == null || objectToView.getId() == 0) {
                 return; // null
             }
 
@@ -307,8 +543,8 @@ public class ObjectViewerForm extends JFrame {
         }
 
         @Override
-        List<String> loadElements(int offset, int limit) {
-            return viewer.listPrimitiveArrayElements(objId, offset, limit);
+        CompletableFuture<List<String>> loadElements(int offset, int limit) {
+            return viewer.listPrimitiveArrayElementsAsync(objId, offset, limit);
         }
 
         @Override
@@ -1,11 +1,22 @@
 package org.gsoft.showcase.hprof.viewer.gui;
 
+import javax.swing.JButton;
 import javax.swing.JDialog;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 
+/**
+ * Modal dialog shown while a long operation runs in background; all methods are to be called on EDT.
+ */
 public class WaitDialog extends JDialog {
 
     private JPanel contentPane;
+    private JLabel statusLabel;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+
+    private Runnable cancelListener;
 
     public WaitDialog() {
         setContentPane(contentPane);
@@ -14,6 +25,41 @@ public class WaitDialog extends JDialog {
         setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
         setResizable(false);
 
+        cancelButton.addActionListener(e -> {
+            cancelButton.setEnabled(false);
+            statusLabel.setText("Cancelling...");
+
+            cancelListener.run();
+        });
+
         pack();
     }
+
+    /**
+     * Enables cancel button, which calls given listener once.
+     */
+    public void setCancelListener(Runnable cancelListener) {
+        this.cancelListener = cancelListener;
+        cancelButton.setEnabled(true);
+    }
+
+    /**
+     * @param total 0 if progress is not known
+     */
+    public void showProgress(String status, long done, long total) {
+        if (!cancelButton.isEnabled() && cancelListener != null) {
+            return; // keeps showing "Cancelling..."
+        }
+
+        statusLabel.setText(status);
+
+        if (total > 0) {
+            progressBar.setIndeterminate(false);
+            progressBar.setStringPainted(true);
+            progressBar.setValue((int) (Math.min(done, total) * 100 / total));
+        } else {
+            progressBar.setIndeterminate(true);
+            progressBar.setStringPainted(false);
+        }
+    }
 }
@@ -2,20 +2,225 @@ package org.gsoft.showcase.hprof.viewer.intellij;
 
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.gsoft.showcase.hprof.viewer.HprofViewer;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.CancellationToken;
 import org.gsoft.showcase.hprof.viewer.gui.MainViewerForm;
+import org.gsoft.showcase.hprof.viewer.storage.IndexDirectory;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Asks for a dump and loads it in IDE background task, with IDE progress and cancellation, then opens the viewer.
+ * Several dumps may be loaded at once, each by its own task, but only one of them is indexed at a time, as indexing
+ * takes a share of IDE heap sized for one dump. "Load dump..." button of opened viewer loads dumps the same way and
+ * shows them in that viewer.
+ */
 public class OpenHprofFileAction extends AnAction {
 
+    // half of the cores, so that IDE and indexing of the project stay responsive while dump is indexed; no more
+    // than standalone viewer would use for its heap, which is fine as dumps are indexed one at a time
+    private static final int INDEXING_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2,
+                                                                     HprofViewer.DEFAULT_INDEXING_THREADS));
+
+    private static final String TITLE = "Hprof Viewer";
+
+    // held by the task indexing its dump; tasks loading valid indexes don't wait for it
+    private static final Semaphore INDEXING_PERMIT = new Semaphore(1, true);
+
+    // the same dump isn't loaded twice at once, as both tasks would write the same index
+    private static final Set<File> DUMPS_BEING_LOADED = ConcurrentHashMap.newKeySet();
+
+    // indexes of dumps opened in this IDE session are not evicted, as they may be still viewed
+    private static final Set<File> DUMPS_OPENED = ConcurrentHashMap.newKeySet();
+
+    // index takes under half of dump size, so indexes of a few large dumps are kept
+    private static final long INDEX_CACHE_MAX_BYTES_SIZE = 20L * 1024 * 1024 * 1024;
+    private static final long INDEX_MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(30);
+
     @Override
     public void actionPerformed(@NotNull AnActionEvent event) {
-        MainViewerForm mainViewerForm = new MainViewerForm();
-        mainViewerForm.setLocationRelativeTo(null);
-        mainViewerForm.setVisible(true);
+        chooseAndLoadDump(event.getProject(), null);
     }
 
     @Override
     public boolean isDumbAware() {
         return true;
     }
+
+    /**
+     * @return directory for indexes of dumps under IDE system directory, so that they're kept between IDE sessions
+     *         rather than left next to the dumps; indexes are evicted from it by {@link #evictIndexes()}
+     */
+    private static File getIndexCacheDirectory() {
+        return new File(PathManager.getSystemPath(), "hprof-viewer-index");
+    }
+
+    /**
+     * Deletes indexes of dumps which are gone, indexes unused for a month and least recently used ones over the size
+     * limit of index cache directory; called by every loading task before it loads its dump.
+     */
+    private static void evictIndexes() {
+        Set<File> keptDumpFiles = new HashSet<>(DUMPS_BEING_LOADED);
+        keptDumpFiles.addAll(DUMPS_OPENED);
+
+        IndexDirectory.evictIndexes(getIndexCacheDirectory(), INDEX_MAX_UNUSED_MILLIS, INDEX_CACHE_MAX_BYTES_SIZE,
+                                    keptDumpFiles);
+    }
+
+    /**
+     * @param targetForm viewer to show loaded dump in, or null to open a new one
+     */
+    private static void chooseAndLoadDump(@Nullable Project project, @Nullable MainViewerForm targetForm) {
+        VirtualFile dumpVirtualFile =
+            FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFileDescriptor("hprof")
+                                       .withTitle("Open .hprof File"), targetForm, project, null);
+
+        if (dumpVirtualFile == null) {
+            return;
+        }
+
+        File dumpFile = VfsUtilCore.virtualToIoFile(dumpVirtualFile).getAbsoluteFile();
+
+        if (!DUMPS_BEING_LOADED.add(dumpFile)) {
+            if (targetForm != null) {
+                Messages.showInfoMessage(targetForm, dumpFile.getName() + " is being loaded already", TITLE);
+            } else {
+                Messages.showInfoMessage(project, dumpFile.getName() + " is being loaded already", TITLE);
+            }
+            return;
+        }
+
+        ProgressManager.getInstance().run(new DumpLoadingTask(project, dumpFile, targetForm));
+    }
+
+    private static class DumpLoadingTask extends Task.Backgroundable {
+        private final File dumpFile;
+        private final MainViewerForm targetForm;
+
+        private HprofViewer viewer;
+
+        DumpLoadingTask(@Nullable Project project, File dumpFile, @Nullable MainViewerForm targetForm) {
+            super(project, "Loading " + dumpFile.getName(), true);
+            this.dumpFile = dumpFile;
+            this.targetForm = targetForm;
+        }
+
+        @Override
+        public void run(@NotNull ProgressIndicator indicator) {
+            // loading threads poll the indicator, so that loading stops and deletes its files once IDE cancels it
+            CancellationToken cancellationToken = new CancellationToken() {
+                @Override
+                public boolean isCancelled() {
+                    return super.isCancelled() || indicator.isCanceled();
+                }
+            };
+
+            evictIndexes();
+
+            // index may turn out broken when loaded and be rebuilt anyway, which is rare enough to not wait for
+            boolean indexing = !IndexDirectory.forDump(dumpFile, getIndexCacheDirectory()).isValid();
+
+            if (indexing) {
+                acquireIndexingPermit(indicator);
+            }
+
+            try {
+                viewer = new HprofViewer(dumpFile, getIndexCacheDirectory(), INDEXING_THREADS,
+                                         (phase, phaseBytesDone, phaseBytesSize, objectsIndexed) -> {
+                                             indicator.setText(MainViewerForm.describeLoadingPhase(phase,
+                                                                                                   objectsIndexed));
+                                             indicator.setIndeterminate(phaseBytesSize <= 0);
+
+                                             if (phaseBytesSize > 0) {
+                                                 indicator.setFraction((double) phaseBytesDone / phaseBytesSize);
+                                             }
+                                         }, cancellationToken);
+            } catch (CancellationException e) {
+                indicator.checkCanceled(); // IDE expects ProcessCanceledException
+                throw e;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (indexing) {
+                    INDEXING_PERMIT.release();
+                }
+            }
+        }
+
+        private static void acquireIndexingPermit(ProgressIndicator indicator) {
+            indicator.setText("Waiting for another dump to be indexed...");
+            indicator.setIndeterminate(true);
+
+            try {
+                while (!INDEXING_PERMIT.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    indicator.checkCanceled();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted while waiting for another dump to be indexed");
+            }
+        }
+
+        @Override
+        public void onSuccess() {
+            DUMPS_OPENED.add(dumpFile);
+
+            // viewer may have been closed while dump was loading
+            if (targetForm != null && targetForm.isDisplayable()) {
+                targetForm.setTitle(TITLE + " - " + dumpFile.getName());
+                targetForm.showDump(viewer);
+                return;
+            }
+
+            Project project = getProject();
+
+            MainViewerForm mainViewerForm = new MainViewerForm();
+            mainViewerForm.setLoadDumpAction(() -> chooseAndLoadDump(project, mainViewerForm));
+            mainViewerForm.setTitle(TITLE + " - " + dumpFile.getName());
+            mainViewerForm.showDump(viewer);
+            mainViewerForm.setLocationRelativeTo(null);
+            mainViewerForm.setVisible(true);
+        }
+
+        @Override
+        public void onCancel() {
+            // IDE may cancel the task after dump is loaded
+            if (viewer != null) {
+                viewer.close();
+            }
+        }
+
+        @Override
+        public void onThrowable(@NotNull Throwable error) {
+            Throwable cause = error instanceof RuntimeException && error.getCause() instanceof IOException
+                              ? error.getCause() : error;
+
+            Messages.showErrorDialog(getProject(), String.format("Failed to load %s\n%s: %s", dumpFile.getName(),
+                                                                 cause.getClass().getSimpleName(),
+                                                                 cause.getMessage()), TITLE);
+        }
+
+        @Override
+        public void onFinished() {
+            DUMPS_BEING_LOADED.remove(dumpFile);
+        }
+    }
 }
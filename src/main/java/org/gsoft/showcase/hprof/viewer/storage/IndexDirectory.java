@@ -0,0 +1,248 @@
+package org.gsoft.showcase.hprof.viewer.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Directory with persistent index files of one heap dump, so that reopening the dump skips parsing.
+ * Index is valid if it was written by the same format version for the dump of the same size, modification time
+ * and header checksum. Key file is written last, so partially written index is never considered valid. Its
+ * modification time is the time index was last used, see {@link #evictIndexes(File, long, long, Collection)}.
+ */
+public class IndexDirectory {
+
+    // bump on any change of index files format
+    private static final int FORMAT_VERSION = 4;
+
+    private static final String KEY_FILE_NAME = "index.key";
+    private static final String DIRECTORY_SUFFIX = ".index";
+    private static final int HEADER_CHECKSUM_BYTES_SIZE = 64 * 1024;
+
+    // directory with no key file is an index being written, unless it is left for that long
+    private static final long ABANDONED_INDEX_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final File dumpFile;
+    private final File directory;
+
+    private IndexDirectory(File dumpFile, File directory) {
+        this.dumpFile = dumpFile;
+        this.directory = directory;
+    }
+
+    /**
+     * @param cacheDirectory directory for indexes of all dumps; if null, index is kept next to the dump (or in
+     *                       temporary directory if dump directory is not writable)
+     */
+    public static IndexDirectory forDump(File dumpFile, File cacheDirectory) {
+        File absoluteDumpFile = dumpFile.getAbsoluteFile();
+
+        if (cacheDirectory == null) {
+            File dumpDirectory = absoluteDumpFile.getParentFile();
+
+            if (dumpDirectory != null && dumpDirectory.canWrite()) {
+                return new IndexDirectory(absoluteDumpFile,
+                                          new File(dumpDirectory, absoluteDumpFile.getName() + DIRECTORY_SUFFIX));
+            }
+
+            cacheDirectory = new File(System.getProperty("java.io.tmpdir"), "hprof-viewer-index");
+        }
+
+        String directoryName = String.format("%s-%08x%s", absoluteDumpFile.getName(),
+                                             absoluteDumpFile.getPath().hashCode(), DIRECTORY_SUFFIX);
+
+        return new IndexDirectory(absoluteDumpFile, new File(cacheDirectory, directoryName));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public File getFile(String name) {
+        return new File(directory, name);
+    }
+
+    public boolean isValid() {
+        File keyFile = getFile(KEY_FILE_NAME);
+
+        if (!keyFile.isFile()) {
+            return false;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(keyFile)))) {
+            if (input.readInt() != FORMAT_VERSION) {
+                return false;
+            }
+
+            input.readUTF(); // dump path, only needed for eviction; index may be moved along with the dump
+
+            return input.readLong() == dumpFile.length()
+                   && input.readLong() == dumpFile.lastModified()
+                   && input.readLong() == computeHeaderChecksum();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Invalidates and cleans up existing index (if any) before writing new one.
+     */
+    public void prepareForWriting() throws IOException {
+        getFile(KEY_FILE_NAME).delete();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("failed to create index directory: " + directory);
+        }
+
+        deleteFiles();
+    }
+
+    /**
+     * Deletes partially written index along with its directory; to be called if writing index fails or is cancelled.
+     */
+    public void discard() {
+        deleteFiles();
+        directory.delete();
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Marks index as complete and valid; to be called after all other index files are written.
+     */
+    public void commit() throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(getFile(KEY_FILE_NAME))))) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(dumpFile.getPath());
+            output.writeLong(dumpFile.length());
+            output.writeLong(dumpFile.lastModified());
+            output.writeLong(computeHeaderChecksum());
+        }
+    }
+
+    /**
+     * Records that index is used, so that it is evicted after the ones unused for longer.
+     */
+    public void markUsed() {
+        getFile(KEY_FILE_NAME).setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes indexes kept in given cache directory which are not worth keeping: indexes of other format versions, of
+     * dumps which are deleted or changed and indexes unused for given time; then least recently used ones, until the
+     * rest take no more than given size. Directories of indexes being written are left alone.
+     *
+     * @param keptDumpFiles dumps which indexes are never deleted, e.g. the ones being loaded
+     */
+    public static synchronized void evictIndexes(File cacheDirectory, long maxUnusedMillis, long maxTotalBytesSize,
+                                                 Collection<File> keptDumpFiles) {
+        File[] directories = cacheDirectory.listFiles(file -> file.isDirectory()
+                                                              && file.getName().endsWith(DIRECTORY_SUFFIX));
+
+        if (directories == null) {
+            return;
+        }
+
+        Set<File> keptDirectories = keptDumpFiles.stream()
+            .map(dumpFile -> forDump(dumpFile, cacheDirectory).directory)
+            .collect(Collectors.toSet());
+
+        long now = System.currentTimeMillis();
+        List<IndexDirectory> usedIndexes = new ArrayList<>();
+
+        for (File directory : directories) {
+            if (keptDirectories.contains(directory)) {
+                continue;
+            }
+
+            File keyFile = new File(directory, KEY_FILE_NAME);
+            IndexDirectory index = new IndexDirectory(readIndexedDumpFile(keyFile), directory);
+
+            if (!keyFile.isFile()) {
+                if (directory.lastModified() < now - ABANDONED_INDEX_MILLIS) {
+                    index.discard();
+                }
+            } else if (index.dumpFile == null || !index.dumpFile.isFile()
+                       || keyFile.lastModified() < now - maxUnusedMillis || !index.isValid()) {
+                index.discard();
+            } else {
+                usedIndexes.add(index);
+            }
+        }
+
+        long keptBytesSize = keptDirectories.stream().mapToLong(IndexDirectory::getBytesSize).sum();
+
+        usedIndexes.sort(Comparator.comparingLong((IndexDirectory index) -> index.getFile(KEY_FILE_NAME).lastModified())
+                             .reversed());
+
+        for (IndexDirectory index : usedIndexes) {
+            keptBytesSize += getBytesSize(index.directory);
+
+            if (keptBytesSize > maxTotalBytesSize) {
+                index.discard();
+            }
+        }
+    }
+
+    /**
+     * @return dump file written to given key file; null if key file is missing or of other format version
+     */
+    private static File readIndexedDumpFile(File keyFile) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(keyFile)))) {
+            return input.readInt() == FORMAT_VERSION ? new File(input.readUTF()) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long getBytesSize(File directory) {
+        File[] files = directory.listFiles();
+
+        return files != null ? Arrays.stream(files).mapToLong(File::length).sum() : 0;
+    }
+
+    private long computeHeaderChecksum() throws IOException {
+        CRC32 crc = new CRC32();
+
+        try (InputStream input = new FileInputStream(dumpFile)) {
+            byte[] buffer = new byte[HEADER_CHECKSUM_BYTES_SIZE];
+            int totalRead = 0;
+
+            while (totalRead < buffer.length) {
+                int read = input.read(buffer, totalRead, buffer.length - totalRead);
+                if (read == -1) {
+                    break;
+                }
+                totalRead += read;
+            }
+
+            crc.update(buffer, 0, totalRead);
+        }
+
+        return crc.getValue();
+    }
+}
@@ -1,17 +1,32 @@
 package org.gsoft.showcase.hprof.viewer.storage;
 
+import org.gsoft.showcase.hprof.viewer.util.ClassDictionary;
 import java.io.BufferedOutputStream;
+import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class ObjectInfoBinarySearchFileStorage {
 
@@ -77,36 +92,209 @@ public class ObjectInfoBinarySearchFileStorage {
 
     // TODO calibrate sizes even more?
     private static final int CHUNK_RECORDS_SIZE = 1000000;
-    private static final int RESULT_BUFFER_RECORDS_SIZE = 1000;
-    private static final int SORTED_FILE_BUFFER_RECORDS_SIZE = 100;
+    private static final int RESULT_BUFFER_BYTES_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_SORTED_FILE_BUFFER_BYTES_SIZE = 64 * 1024;
+    private static final int MAX_SORTED_FILE_BUFFER_BYTES_SIZE = 1024 * 1024;
+    private static final int SORTED_FILES_BUFFERS_BYTES_BUDGET = 64 * 1024 * 1024; // for all runs together
 
-    private static final int RECORD_SIZE = 8 + 8 + 8 + 1; // id + classId + offset + type
+    // ObjectType is packed into low bits of class ordinal
+    private static final int TYPE_BITS = 2;
+    private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
 
-    private static final long EMPTY_VALUE = -1;
+    private static final ObjectType[] OBJECT_TYPES = ObjectType.values();
+
+    // result file is split into blocks of whole records, so any lookup reads exactly one block (one page)
+    private static final int BLOCK_SIZE = 4096;
+
+    // each mapped window holds whole blocks only and stays below 2 GB (MappedByteBuffer limit)
+    private static final int MAPPED_WINDOW_BLOCKS_SIZE = Integer.MAX_VALUE / BLOCK_SIZE;
+
+    // each chunk takes ~50 MB, so keeping the number of chunks in flight low
+    private static final int DEFAULT_SORTING_THREADS =
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
 
     private List<File> sortedFiles = new ArrayList<>();
 
-    private List<ObjectInfo> objectInfosChunk = new ArrayList<>(CHUNK_RECORDS_SIZE);
+    // sorted files of merged shards, which have class ordinals of their own dictionaries
+    private Map<File, int[]> classOrdinalsRemapsBySortedFile = new HashMap<>();
+
+    private ObjectInfosChunk objectInfosChunk; // allocated on first registration
+
+    // null if chunks are sorted and spilled synchronously
+    private final ExecutorService sortingExecutor;
+    private final BlockingQueue<ObjectInfosChunk> freeChunks;
+    private final int maxChunksCount;
+    private int allocatedChunksCount;
+    private List<Future<File>> sortedFileFutures = new ArrayList<>();
 
     private boolean finished = false;
 
-    private RandomAccessFile resultRandomAccessFile;
+    private ClassDictionary classDictionary = new ClassDictionary();
+
+    // collected while registering to choose the result record layout
+    private long registeredCount;
+    private long minId = Long.MAX_VALUE;
+    private long maxId = Long.MIN_VALUE;
+    private long idsBits;
+    private long maxDumpFileOffset;
+    private int maxClassOrdinalAndType;
+
+    // Result record layout: (id - minId) >>> idShift, dump file offset, class ordinal << TYPE_BITS | type;
+    // each stored as big-endian unsigned value of minimal width. Shift drops bits that are zero for all ids due
+    // to object alignment. Typically 12-13 bytes per record instead of 25.
+    private int idShift;
+    private int idBytes;
+    private int dumpFileOffsetBytes;
+    private int classOrdinalAndTypeBytes;
+    private int resultRecordSize;
+    private int blockRecordsSize;
+
+    // first key of every block (fence pointers)
+    private long[] blockFirstKeys;
+
+    private final File resultFile; // null for temporary file
+    // lookups only do positional or mapped reads, so once finished they may be done by several threads at once
+    private FileChannel resultChannel;
+    private final ThreadLocal<ByteBuffer> resultBlockBuffers = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocate(BLOCK_SIZE));
+
+    private final boolean memoryMappedLookups;
+
+    // null if memory mapped lookups are disabled or mapping has failed
+    private MappedByteBuffer[] resultMappedWindows;
+    private long resultRecordsCount;
+
+    public ObjectInfoBinarySearchFileStorage() {
+        this(null, true, DEFAULT_SORTING_THREADS);
+    }
+
+    public ObjectInfoBinarySearchFileStorage(boolean memoryMappedLookups, int sortingThreads) {
+        this(null, memoryMappedLookups, sortingThreads);
+    }
 
-    public void registerObjectInfo(ObjectInfo info) {
+    public ObjectInfoBinarySearchFileStorage(File resultFile) {
+        this(resultFile, true, DEFAULT_SORTING_THREADS);
+    }
+
+    /**
+     * @param resultFile          file to keep sorted object infos in; overwritten; temporary file is used if null
+     * @param memoryMappedLookups if true, result file is memory mapped after merging and lookups are done without
+     *                            syscalls; falls back to positional reads of blocks if mapping fails
+     * @param sortingThreads      number of background threads sorting and spilling full chunks while registering
+     *                            continues into a fresh chunk; 0 to sort and spill in the registering thread
+     */
+    public ObjectInfoBinarySearchFileStorage(File resultFile, boolean memoryMappedLookups, int sortingThreads) {
+        this.resultFile = resultFile;
+        this.memoryMappedLookups = memoryMappedLookups;
+
+        if (sortingThreads > 0) {
+            sortingExecutor = Executors.newFixedThreadPool(sortingThreads, runnable -> {
+                Thread thread = new Thread(runnable, "hprof-viewer-chunk-sorter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            maxChunksCount = sortingThreads + 1; // one being filled, others being sorted
+            freeChunks = new ArrayBlockingQueue<>(maxChunksCount);
+        } else {
+            sortingExecutor = null;
+            maxChunksCount = 1;
+            freeChunks = null;
+        }
+    }
+
+    public void registerObjectInfo(long id, PrimitiveType primitiveType, long dumpFileOffset) {
+        registerObjectInfo(id, primitiveType.ordinal(), dumpFileOffset, ObjectType.PRIMITIVE_ARRAY);
+    }
+
+    /**
+     * Allocation-free counterpart of {@link ObjectInfo#ObjectInfo(long, long, long, ObjectType)}.
+     */
+    public void registerObjectInfo(long id, long classId, long dumpFileOffset, ObjectType type) {
         if (finished) {
             throw new RuntimeException("already finished!");
         }
 
-        if (info.id == EMPTY_VALUE) {
-            throw new RuntimeException("object id clashes with reserved value"); // TODO is it ok?
+        int classOrdinal = type == ObjectType.PRIMITIVE_ARRAY
+                           ? (int) classId
+                           : classDictionary.getOrAddOrdinal(classId);
+        int classOrdinalAndType = classOrdinal << TYPE_BITS | type.ordinal();
+
+        registeredCount++;
+        minId = Math.min(minId, id);
+        maxId = Math.max(maxId, id);
+        idsBits |= id;
+        maxDumpFileOffset = Math.max(maxDumpFileOffset, dumpFileOffset);
+        maxClassOrdinalAndType = Math.max(maxClassOrdinalAndType, classOrdinalAndType);
+
+        if (objectInfosChunk == null) {
+            objectInfosChunk = new ObjectInfosChunk(CHUNK_RECORDS_SIZE);
+            allocatedChunksCount = 1;
         }
 
-        objectInfosChunk.add(info);
+        objectInfosChunk.add(id, dumpFileOffset, classOrdinalAndType);
 
-        if (objectInfosChunk.size() == CHUNK_RECORDS_SIZE) {
-            createNewSortedFile();
-            objectInfosChunk.clear();
+        if (objectInfosChunk.isFull()) {
+            spillChunk();
+        }
+    }
+
+    /**
+     * Creates storage to be filled by another thread (e.g. one indexing part of the dump) and then merged into this
+     * one with {@link #mergeShard(ObjectInfoBinarySearchFileStorage)}. Shard sorts and spills its chunks in the
+     * thread filling it.
+     */
+    public ObjectInfoBinarySearchFileStorage createShard() {
+        return new ObjectInfoBinarySearchFileStorage(null, false, 0);
+    }
+
+    /**
+     * @return heap taken by a shard (see {@link #createShard()}) while it is filled
+     */
+    public static long getShardHeapBytesSize() {
+        return ObjectInfosChunk.heapBytesSize(CHUNK_RECORDS_SIZE);
+    }
+
+    /**
+     * Takes over everything registered in given shard; shard is not usable afterwards. Sorted files of the shard
+     * are merged together with own ones in {@link #finishRegistering()}.
+     */
+    public synchronized void mergeShard(ObjectInfoBinarySearchFileStorage shard) {
+        if (finished || shard.finished) {
+            throw new RuntimeException("already finished!");
+        }
+
+        if (shard.objectInfosChunk != null && shard.objectInfosChunk.size() != 0) {
+            shard.sortedFiles.add(shard.createNewSortedFile(shard.objectInfosChunk));
         }
+
+        shard.objectInfosChunk = null;
+        shard.finished = true;
+
+        int[] classOrdinalsRemap = new int[shard.classDictionary.size()];
+        int maxClassOrdinal = 0;
+
+        for (int shardOrdinal = 0; shardOrdinal < classOrdinalsRemap.length; shardOrdinal++) {
+            classOrdinalsRemap[shardOrdinal] =
+                classDictionary.getOrAddOrdinal(shard.classDictionary.getClassId(shardOrdinal));
+            maxClassOrdinal = Math.max(maxClassOrdinal, classOrdinalsRemap[shardOrdinal]);
+        }
+
+        for (File sortedFile : shard.sortedFiles) {
+            sortedFiles.add(sortedFile);
+            classOrdinalsRemapsBySortedFile.put(sortedFile, classOrdinalsRemap);
+        }
+
+        shard.sortedFiles = null;
+
+        registeredCount += shard.registeredCount;
+        minId = Math.min(minId, shard.minId);
+        maxId = Math.max(maxId, shard.maxId);
+        idsBits |= shard.idsBits;
+        maxDumpFileOffset = Math.max(maxDumpFileOffset, shard.maxDumpFileOffset);
+        // upper bound; shard's own maximum covers primitive arrays types
+        maxClassOrdinalAndType = Math.max(maxClassOrdinalAndType,
+                                          Math.max(shard.maxClassOrdinalAndType,
+                                                   maxClassOrdinal << TYPE_BITS | TYPE_MASK));
     }
 
     public void finishRegistering() throws IOException {
@@ -114,149 +302,713 @@ public class ObjectInfoBinarySearchFileStorage {
             throw new RuntimeException("already finished!");
         }
 
-        if (objectInfosChunk.size() != 0) {
-            createNewSortedFile();
+        if (objectInfosChunk != null && objectInfosChunk.size() != 0) {
+            sortedFiles.add(createNewSortedFile(objectInfosChunk));
         }
 
         objectInfosChunk = null;
 
-        List<FileInputStream> sortedFileInputStreams = new ArrayList<>(sortedFiles.size());
+        awaitSortedFiles();
 
-        File resultFile = File.createTempFile("myhprof_obj_info_", ".tmp");
-        resultFile.deleteOnExit();
+        chooseResultRecordLayout();
 
-        try (FileOutputStream resultOutputStream = new FileOutputStream(resultFile)) {
-            ByteBuffer resultByteBuffer = ByteBuffer.allocateDirect(RESULT_BUFFER_RECORDS_SIZE * RECORD_SIZE);
+        File resultFile = this.resultFile;
 
-            List<ByteBuffer> sortedFileByteBuffers = new ArrayList<>(sortedFiles.size());
+        if (resultFile == null) {
+            resultFile = File.createTempFile("myhprof_obj_info_", ".tmp");
+            resultFile.deleteOnExit();
+        }
 
-            for (File sortedFile : sortedFiles) {
-                FileInputStream sortedFileInputStream = new FileInputStream(sortedFile);
+        mergeSortedFiles(resultFile);
 
-                ByteBuffer byteBuffer = ByteBuffer.allocateDirect(SORTED_FILE_BUFFER_RECORDS_SIZE * RECORD_SIZE);
-                int bytesRead = sortedFileInputStream.getChannel().read(byteBuffer);
+        for (File sortedFile : sortedFiles) {
+            sortedFile.delete();
+        }
 
-                byteBuffer.position(0);
-                byteBuffer.limit(bytesRead);
+        sortedFiles = null;
+        classOrdinalsRemapsBySortedFile = null;
 
-                sortedFileByteBuffers.add(byteBuffer);
-                sortedFileInputStreams.add(sortedFileInputStream);
-            }
+        openResultFile(resultFile);
+
+        finished = true;
+    }
 
-            long[] nextIdsFromFiles = new long[sortedFiles.size()];
+    private void openResultFile(File resultFile) throws IOException {
+        resultChannel = new RandomAccessFile(resultFile, "r").getChannel();
+        resultRecordsCount = registeredCount;
 
-            for (int i = 0; i < nextIdsFromFiles.length; i++) {
-                nextIdsFromFiles[i] = sortedFileByteBuffers.get(i).getLong();
+        if (blockFirstKeys.length > 0) {
+            int lastBlockIdx = blockFirstKeys.length - 1;
+
+            // last block is not padded
+            if (resultChannel.size() < (long) lastBlockIdx * BLOCK_SIZE
+                                       + blockRecordsCount(lastBlockIdx) * resultRecordSize) {
+                throw new IOException("result file is truncated: " + resultFile);
             }
+        }
 
-            while (true) {
-                int fileWithMinIndex = -1;
-                long minId = -1;
+        if (memoryMappedLookups) {
+            resultMappedWindows = mapResultFile();
+        }
+    }
 
-                for (int i = 0; i < nextIdsFromFiles.length; i++) {
-                    if (nextIdsFromFiles[i] == EMPTY_VALUE) {
-                        continue;
-                    }
-                    if (fileWithMinIndex == -1 || nextIdsFromFiles[i] < minId) {
-                        fileWithMinIndex = i;
-                        minId = nextIdsFromFiles[i];
-                    }
-                }
+    /**
+     * Opens storage previously filled in given result file.
+     *
+     * @param metadata data written by {@link #writeMetadata(DataOutput)}
+     */
+    public static ObjectInfoBinarySearchFileStorage load(File resultFile, DataInput metadata,
+                                                         boolean memoryMappedLookups) throws IOException {
+        ObjectInfoBinarySearchFileStorage storage =
+            new ObjectInfoBinarySearchFileStorage(resultFile, memoryMappedLookups, 0);
+
+        storage.registeredCount = metadata.readLong();
+        storage.minId = metadata.readLong();
+        storage.maxId = metadata.readLong();
+        storage.idShift = metadata.readInt();
+        storage.idBytes = metadata.readInt();
+        storage.dumpFileOffsetBytes = metadata.readInt();
+        storage.classOrdinalAndTypeBytes = metadata.readInt();
+        storage.resultRecordSize = storage.idBytes + storage.dumpFileOffsetBytes + storage.classOrdinalAndTypeBytes;
+        storage.blockRecordsSize = BLOCK_SIZE / storage.resultRecordSize;
+
+        storage.blockFirstKeys = new long[metadata.readInt()];
+        for (int i = 0; i < storage.blockFirstKeys.length; i++) {
+            storage.blockFirstKeys[i] = metadata.readLong();
+        }
+
+        storage.classDictionary = ClassDictionary.read(metadata);
+
+        storage.sortedFiles = null;
+        storage.sortedFileFutures = null;
+
+        try {
+            storage.openResultFile(resultFile);
+        } catch (IOException | RuntimeException e) {
+            // e.g. result file is shorter than its metadata says
+            storage.discard();
+            throw e;
+        }
+
+        storage.finished = true;
+
+        return storage;
+    }
+
+    /**
+     * Writes everything (except result file itself) needed to {@link #load(File, DataInput, boolean)} this storage.
+     */
+    public void writeMetadata(DataOutput metadata) throws IOException {
+        if (!finished) {
+            throw new RuntimeException("not yet finished!");
+        }
+
+        metadata.writeLong(registeredCount);
+        metadata.writeLong(minId);
+        metadata.writeLong(maxId);
+        metadata.writeInt(idShift);
+        metadata.writeInt(idBytes);
+        metadata.writeInt(dumpFileOffsetBytes);
+        metadata.writeInt(classOrdinalAndTypeBytes);
+
+        metadata.writeInt(blockFirstKeys.length);
+        for (long blockFirstKey : blockFirstKeys) {
+            metadata.writeLong(blockFirstKey);
+        }
+
+        classDictionary.write(metadata);
+    }
+
+    private void chooseResultRecordLayout() {
+        if (minId > maxId) { // nothing registered
+            minId = 0;
+            maxId = 0;
+        }
+
+        idShift = idsBits == 0 ? 0 : Long.numberOfTrailingZeros(idsBits);
+        idBytes = bytesToStore((maxId - minId) >>> idShift);
+        dumpFileOffsetBytes = bytesToStore(maxDumpFileOffset);
+        classOrdinalAndTypeBytes = bytesToStore(maxClassOrdinalAndType);
+
+        resultRecordSize = idBytes + dumpFileOffsetBytes + classOrdinalAndTypeBytes;
+        blockRecordsSize = BLOCK_SIZE / resultRecordSize;
+
+        blockFirstKeys = new long[(int) ((registeredCount + blockRecordsSize - 1) / blockRecordsSize)];
+    }
+
+    private static int bytesToStore(long unsignedValue) {
+        return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(unsignedValue) + Byte.SIZE - 1) / Byte.SIZE);
+    }
+
+    private static void putUnsigned(ByteBuffer buffer, long value, int bytes) {
+        for (int shift = (bytes - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            buffer.put((byte) (value >>> shift));
+        }
+    }
+
+    private static long getUnsigned(ByteBuffer buffer, int position, int bytes) {
+        long value = 0;
+
+        for (int i = 0; i < bytes; i++) {
+            value = value << Byte.SIZE | (buffer.get(position + i) & 0xFF);
+        }
+
+        return value;
+    }
+
+    /**
+     * K-way merge of sorted files using binary min-heap of runs keyed by their current ids, so each output record
+     * costs O(log k) comparisons.
+     */
+    private void mergeSortedFiles(File resultFile) throws IOException {
+        int runsCount = sortedFiles.size();
+
+        int runBufferBytesSize = Math.max(MIN_SORTED_FILE_BUFFER_BYTES_SIZE,
+                                          Math.min(MAX_SORTED_FILE_BUFFER_BYTES_SIZE,
+                                                   SORTED_FILES_BUFFERS_BYTES_BUDGET / Math.max(1, runsCount)));
+        int runBufferRecordsSize = runBufferBytesSize / ObjectInfosChunk.RECORD_SIZE;
 
-                if (fileWithMinIndex == -1) {
-                    break;
+        List<FileInputStream> sortedFileInputStreams = new ArrayList<>(runsCount);
+
+        try (FileOutputStream resultOutputStream = new FileOutputStream(resultFile)) {
+            FileChannel resultChannel = resultOutputStream.getChannel();
+            ByteBuffer resultByteBuffer = ByteBuffer.allocateDirect(RESULT_BUFFER_BYTES_SIZE); // whole blocks
+            int blockPaddingSize = BLOCK_SIZE - blockRecordsSize * resultRecordSize;
+            long recordIdx = 0;
+
+            FileChannel[] runChannels = new FileChannel[runsCount];
+            ByteBuffer[] runBuffers = new ByteBuffer[runsCount];
+            long[] runIds = new long[runsCount];
+            int[][] runClassOrdinalsRemaps = new int[runsCount][]; // null if run has own class ordinals
+
+            int[] heap = new int[runsCount]; // run indexes; run with min current id on top
+            int heapSize = 0;
+
+            for (int i = 0; i < runsCount; i++) {
+                FileInputStream sortedFileInputStream = new FileInputStream(sortedFiles.get(i));
+                sortedFileInputStreams.add(sortedFileInputStream);
+
+                runChannels[i] = sortedFileInputStream.getChannel();
+                runBuffers[i] = ByteBuffer.allocateDirect(runBufferRecordsSize * ObjectInfosChunk.RECORD_SIZE);
+                runBuffers[i].limit(0);
+                runClassOrdinalsRemaps[i] = classOrdinalsRemapsBySortedFile.get(sortedFiles.get(i));
+
+                if (fillRunBuffer(runChannels[i], runBuffers[i])) {
+                    runIds[i] = runBuffers[i].getLong();
+                    heap[heapSize++] = i;
                 }
+            }
 
-                ByteBuffer fileBufferWithMinId = sortedFileByteBuffers.get(fileWithMinIndex);
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(heap, heapSize, runIds, i);
+            }
+
+            while (heapSize > 0) {
+                int run = heap[0];
+                ByteBuffer runBuffer = runBuffers[run];
+
+                long key = (runIds[run] - minId) >>> idShift;
+
+                int recordIdxInBlock = (int) (recordIdx % blockRecordsSize);
 
-                resultByteBuffer.putLong(minId);
-                resultByteBuffer.putLong(fileBufferWithMinId.getLong()); // classId
-                resultByteBuffer.putLong(fileBufferWithMinId.getLong()); // offset
-                resultByteBuffer.put(fileBufferWithMinId.get()); // type
+                if (recordIdxInBlock == 0) {
+                    blockFirstKeys[(int) (recordIdx / blockRecordsSize)] = key;
+                }
 
-                if (!resultByteBuffer.hasRemaining()) {
-                    resultByteBuffer.position(0);
-                    resultOutputStream.getChannel().write(resultByteBuffer);
+                putUnsigned(resultByteBuffer, key, idBytes);
+                putUnsigned(resultByteBuffer, runBuffer.getLong(), dumpFileOffsetBytes);
+                int classOrdinalAndType = runBuffer.getInt();
+                int[] classOrdinalsRemap = runClassOrdinalsRemaps[run];
 
-                    resultByteBuffer.clear();
+                if (classOrdinalsRemap != null
+                    && (classOrdinalAndType & TYPE_MASK) != ObjectType.PRIMITIVE_ARRAY.ordinal()) {
+                    classOrdinalAndType = classOrdinalsRemap[classOrdinalAndType >>> TYPE_BITS] << TYPE_BITS
+                                          | classOrdinalAndType & TYPE_MASK;
                 }
 
-                if (!fileBufferWithMinId.hasRemaining()) {
-                    fileBufferWithMinId.clear();
+                putUnsigned(resultByteBuffer, classOrdinalAndType, classOrdinalAndTypeBytes);
 
-                    int bytesRead =
-                        sortedFileInputStreams.get(fileWithMinIndex).getChannel().read(fileBufferWithMinId);
+                recordIdx++;
 
-                    if (bytesRead == -1) {
-                        nextIdsFromFiles[fileWithMinIndex] = -1;
-                        continue;
+                if (recordIdxInBlock == blockRecordsSize - 1) {
+                    for (int i = 0; i < blockPaddingSize; i++) {
+                        resultByteBuffer.put((byte) 0);
                     }
 
-                    fileBufferWithMinId.position(0);
-                    fileBufferWithMinId.limit(bytesRead);
+                    if (!resultByteBuffer.hasRemaining()) {
+                        writeFully(resultChannel, resultByteBuffer);
+                    }
                 }
 
-                nextIdsFromFiles[fileWithMinIndex] = fileBufferWithMinId.getLong();
-            }
-
-            if (resultByteBuffer.position() > 0) {
-                resultByteBuffer.limit(resultByteBuffer.position());
-                resultByteBuffer.position(0);
+                if (runBuffer.hasRemaining() || fillRunBuffer(runChannels[run], runBuffer)) {
+                    runIds[run] = runBuffer.getLong();
+                } else {
+                    heap[0] = heap[--heapSize]; // run is exhausted
+                }
 
-                resultOutputStream.getChannel().write(resultByteBuffer);
+                siftDown(heap, heapSize, runIds, 0);
             }
+
+            writeFully(resultChannel, resultByteBuffer);
         } finally {
             for (FileInputStream sortedFileInputStream : sortedFileInputStreams) {
                 sortedFileInputStream.close();
             }
         }
+    }
 
-        sortedFiles = null;
+    private static void siftDown(int[] heap, int heapSize, long[] runIds, int position) {
+        int run = heap[position];
+        long id = runIds[run];
+
+        while (true) {
+            int child = 2 * position + 1;
+
+            if (child >= heapSize) {
+                break;
+            }
+
+            if (child + 1 < heapSize && runIds[heap[child + 1]] < runIds[heap[child]]) {
+                child++;
+            }
+
+            if (runIds[heap[child]] >= id) {
+                break;
+            }
+
+            heap[position] = heap[child];
+            position = child;
+        }
+
+        heap[position] = run;
+    }
+
+    /**
+     * Refills run buffer keeping its unread bytes; returns false if run has no more records.
+     */
+    private static boolean fillRunBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.compact();
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                break;
+            }
+        }
+
+        buffer.flip();
+
+        return buffer.remaining() >= ObjectInfosChunk.RECORD_SIZE;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * Stops sorting threads and deletes all files of the storage (sorted chunks of merged shards included), whether
+     * finished or not; used to clean up after failed or cancelled indexing. Storage is not usable afterwards.
+     */
+    public synchronized void discard() {
+        if (sortingExecutor != null) {
+            sortingExecutor.shutdownNow();
+
+            try {
+                // chunks being sorted are written to files, which are deleted below
+                sortingExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (sortedFileFutures != null) {
+            for (Future<File> sortedFileFuture : sortedFileFutures) {
+                if (sortedFileFuture.isDone() && !sortedFileFuture.isCancelled()) {
+                    try {
+                        sortedFileFuture.get().delete();
+                    } catch (InterruptedException | ExecutionException e) {
+                        // no file to delete
+                    }
+                }
+            }
+
+            sortedFileFutures = null;
+        }
 
-        resultRandomAccessFile = new RandomAccessFile(resultFile, "r");
+        if (sortedFiles != null) {
+            for (File sortedFile : sortedFiles) {
+                sortedFile.delete();
+            }
 
+            sortedFiles = null;
+        }
+
+        closeResultFile();
+        resultChannel = null;
+
+        if (resultFile != null) {
+            resultFile.delete();
+        }
+
+        objectInfosChunk = null;
         finished = true;
     }
 
+    /**
+     * Closes result file, which is kept; storage is not usable afterwards.
+     */
+    public synchronized void close() {
+        closeResultFile();
+    }
+
+    /**
+     * Closes result file and drops its mapped windows, so that it is unmapped once they are garbage collected; JDK has
+     * no public way to unmap it right away.
+     */
+    private void closeResultFile() {
+        resultMappedWindows = null;
+
+        if (resultChannel != null) {
+            try {
+                resultChannel.close();
+            } catch (IOException e) {
+                // file is not used anymore anyway
+            }
+        }
+    }
+
+    private MappedByteBuffer[] mapResultFile() {
+        int windowsCount = (blockFirstKeys.length + MAPPED_WINDOW_BLOCKS_SIZE - 1) / MAPPED_WINDOW_BLOCKS_SIZE;
+
+        MappedByteBuffer[] windows = new MappedByteBuffer[windowsCount];
+
+        try {
+            long fileLength = resultChannel.size();
+
+            for (int i = 0; i < windowsCount; i++) {
+                long windowOffset = (long) i * MAPPED_WINDOW_BLOCKS_SIZE * BLOCK_SIZE;
+                long windowSize = Math.min((long) MAPPED_WINDOW_BLOCKS_SIZE * BLOCK_SIZE, fileLength - windowOffset);
+
+                windows[i] = resultChannel.map(MapMode.READ_ONLY, windowOffset, windowSize);
+            }
+        } catch (IOException e) {
+            // most likely out of address space; falling back to positional read lookups
+            return null;
+        }
+
+        return windows;
+    }
+
     public ObjectInfo getObjectInfo(long id) {
         if (!finished) {
             throw new RuntimeException("not yet finished!");
         }
 
-        try {
+        long key = keyOf(id);
 
-            long from = 0;
-            long to = resultRandomAccessFile.length();
-
-            // binary search
-            while (from != to) {
-                int instancesCount = (int) (to - from) / RECORD_SIZE;
-                int middleInstanceIdx = instancesCount / 2;
-                long middleOffset = from + middleInstanceIdx * RECORD_SIZE;
-
-                resultRandomAccessFile.seek(middleOffset);
-                long middleId = resultRandomAccessFile.readLong();
-
-                if (middleId == id) {
-                    return new ObjectInfo(id,
-                                          resultRandomAccessFile.readLong(),
-                                          resultRandomAccessFile.readLong(),
-                                          ObjectType.values()[resultRandomAccessFile.readByte()]);
-                } else if (middleId < id) {
-                    from = middleOffset + RECORD_SIZE;
-                } else {
-                    to = middleOffset;
-                }
+        // in-memory search of the only block which may contain the key
+        int blockIdx = findBlock(key, 0, blockFirstKeys.length);
+
+        if (blockIdx == -1) {
+            throw new RuntimeException("instance not found with id=" + id);
+        }
+
+        ByteBuffer block = readBlock(blockIdx);
+        int blockOffset = blockOffsetInBuffer(blockIdx);
+
+        int recordIdx = findRecord(block, blockOffset, 0, blockRecordsCount(blockIdx), key);
+
+        if (recordIdx == -1) {
+            throw new RuntimeException("instance not found with id=" + id);
+        }
+
+        return decodeObjectInfo(id, block, blockOffset + recordIdx * resultRecordSize);
+    }
+
+    /**
+     * Looks up several objects in one pass over the index: ids are sorted, so that blocks are visited in order and
+     * each one is read once no matter how many of the ids it holds; next block is found by galloping from the
+     * current one, next record by binary search from the previous one.
+     *
+     * @return object infos in order of given ids
+     */
+    public ObjectInfo[] getObjectInfos(long[] ids) {
+        if (!finished) {
+            throw new RuntimeException("not yet finished!");
+        }
+
+        ObjectInfo[] objectInfos = new ObjectInfo[ids.length];
+        int[] keysOrder = sortKeysOrder(ids);
+
+        int blockIdx = -1;
+        ByteBuffer block = null;
+        int blockOffset = 0;
+        int recordIdx = 0;
+        long previousKey = -1;
+
+        for (int i = 0; i < keysOrder.length; i++) {
+            int idIdx = keysOrder[i];
+            long id = ids[idIdx];
+            long key = keyOf(id);
+
+            if (i > 0 && key == previousKey) {
+                objectInfos[idIdx] = objectInfos[keysOrder[i - 1]];
+                continue;
+            }
+
+            previousKey = key;
+
+            int keyBlockIdx = blockIdx == -1 ? findBlock(key, 0, blockFirstKeys.length) : gallopToBlock(key, blockIdx);
+
+            if (keyBlockIdx == -1) {
+                throw new RuntimeException("instance not found with id=" + id);
+            }
+
+            if (keyBlockIdx != blockIdx) {
+                blockIdx = keyBlockIdx;
+                block = readBlock(blockIdx);
+                blockOffset = blockOffsetInBuffer(blockIdx);
+                recordIdx = 0;
+            }
+
+            recordIdx = findRecord(block, blockOffset, recordIdx, blockRecordsCount(blockIdx), key);
+
+            if (recordIdx == -1) {
+                throw new RuntimeException("instance not found with id=" + id);
+            }
+
+            objectInfos[idIdx] = decodeObjectInfo(id, block, blockOffset + recordIdx * resultRecordSize);
+        }
+
+        return objectInfos;
+    }
+
+    /**
+     * @return indexes of given ids in order of their keys
+     */
+    private int[] sortKeysOrder(long[] ids) {
+        int[] keysOrder = new int[ids.length];
+        int indexBits = Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(1, ids.length - 1));
+
+        if (idBytes * Byte.SIZE + indexBits < Long.SIZE) {
+            // keys are short enough to be sorted together with indexes packed into their low bits
+            long[] keysAndIndexes = new long[ids.length];
+
+            for (int i = 0; i < ids.length; i++) {
+                keysAndIndexes[i] = keyOf(ids[i]) << indexBits | i;
+            }
+
+            Arrays.sort(keysAndIndexes);
+
+            for (int i = 0; i < ids.length; i++) {
+                keysOrder[i] = (int) (keysAndIndexes[i] & ((1L << indexBits) - 1));
+            }
+        } else {
+            Integer[] boxedKeysOrder = new Integer[ids.length];
+
+            for (int i = 0; i < ids.length; i++) {
+                boxedKeysOrder[i] = i;
             }
 
+            Arrays.sort(boxedKeysOrder, (i1, i2) -> Long.compareUnsigned(keyOf(ids[i1]), keyOf(ids[i2])));
+
+            for (int i = 0; i < ids.length; i++) {
+                keysOrder[i] = boxedKeysOrder[i];
+            }
+        }
+
+        return keysOrder;
+    }
+
+    /**
+     * @return key of id in result file
+     */
+    private long keyOf(long id) {
+        long idDelta = id - minId;
+
+        if (id < minId || id > maxId || (idDelta & ((1L << idShift) - 1)) != 0) {
             throw new RuntimeException("instance not found with id=" + id);
+        }
+
+        return idDelta >>> idShift;
+    }
+
+    /**
+     * @return index of last block with first key not greater than given key, which is not less than given block
+     */
+    private int gallopToBlock(long key, int fromBlockIdx) {
+        int from = fromBlockIdx;
+        int bound = 1;
+
+        while (from + bound < blockFirstKeys.length
+               && Long.compareUnsigned(blockFirstKeys[from + bound], key) <= 0) {
+            from += bound;
+            bound *= 2;
+        }
+
+        return findBlock(key, from, Math.min(from + bound, blockFirstKeys.length));
+    }
 
+    /**
+     * @return index of last block in [from, to) with first key not greater than given key; from - 1 if there is no
+     * such block
+     */
+    private int findBlock(long key, int from, int to) {
+        int low = from;
+        int high = to;
+
+        while (low != high) {
+            int middle = (low + high) >>> 1;
+
+            if (Long.compareUnsigned(blockFirstKeys[middle], key) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low - 1;
+    }
+
+    private int blockRecordsCount(int blockIdx) {
+        return (int) Math.min(blockRecordsSize, resultRecordsCount - (long) blockIdx * blockRecordsSize);
+    }
+
+    /**
+     * @return buffer holding given block at {@link #blockOffsetInBuffer(int)}; either a mapped window or a buffer
+     * reused by the next call in the same thread
+     */
+    private ByteBuffer readBlock(int blockIdx) {
+        if (resultMappedWindows != null) {
+            return resultMappedWindows[blockIdx / MAPPED_WINDOW_BLOCKS_SIZE];
+        }
+
+        ByteBuffer blockBuffer = resultBlockBuffers.get();
+        blockBuffer.clear();
+        blockBuffer.limit(blockRecordsCount(blockIdx) * resultRecordSize);
+
+        long position = (long) blockIdx * BLOCK_SIZE;
+
+        try {
+            while (blockBuffer.hasRemaining()) {
+                int read = resultChannel.read(blockBuffer, position + blockBuffer.position());
+
+                if (read == -1) {
+                    throw new EOFException("unexpected end of object info file at block " + blockIdx);
+                }
+            }
         } catch (IOException e) {
             throw new RuntimeException("failed to get object info", e);
         }
+
+        return blockBuffer;
+    }
+
+    private int blockOffsetInBuffer(int blockIdx) {
+        return resultMappedWindows != null ? (blockIdx % MAPPED_WINDOW_BLOCKS_SIZE) * BLOCK_SIZE : 0;
+    }
+
+    /**
+     * Binary search of key among records [from, to) of a block.
+     *
+     * @return record index within block; -1 if not found
+     */
+    private int findRecord(ByteBuffer block, int blockOffset, int from, int to, long key) {
+        int low = from;
+        int high = to;
+
+        while (low != high) {
+            int middleRecordIdx = (low + high) >>> 1;
+            int middleOffset = blockOffset + middleRecordIdx * resultRecordSize;
+
+            int comparison = Long.compareUnsigned(getUnsigned(block, middleOffset, idBytes), key);
+
+            if (comparison == 0) {
+                return middleRecordIdx;
+            } else if (comparison < 0) {
+                low = middleRecordIdx + 1;
+            } else {
+                high = middleRecordIdx;
+            }
+        }
+
+        return -1;
+    }
+
+    private ObjectInfo decodeObjectInfo(long id, ByteBuffer buffer, int recordOffset) {
+        long dumpFileOffset = getUnsigned(buffer, recordOffset + idBytes, dumpFileOffsetBytes);
+        int classOrdinalAndType = (int) getUnsigned(buffer, recordOffset + idBytes + dumpFileOffsetBytes,
+                                                    classOrdinalAndTypeBytes);
+
+        ObjectType type = OBJECT_TYPES[classOrdinalAndType & TYPE_MASK];
+        int classOrdinal = classOrdinalAndType >>> TYPE_BITS;
+
+        long typeId = type == ObjectType.PRIMITIVE_ARRAY ? classOrdinal : classDictionary.getClassId(classOrdinal);
+
+        return new ObjectInfo(id, typeId, dumpFileOffset, type);
+    }
+
+    private void spillChunk() {
+        if (sortingExecutor == null) {
+            sortedFiles.add(createNewSortedFile(objectInfosChunk));
+            objectInfosChunk.clear();
+            return;
+        }
+
+        ObjectInfosChunk fullChunk = objectInfosChunk;
+
+        sortedFileFutures.add(sortingExecutor.submit(() -> {
+            try {
+                return createNewSortedFile(fullChunk);
+            } finally {
+                fullChunk.clear();
+                freeChunks.add(fullChunk);
+            }
+        }));
+
+        if (freeChunks.isEmpty() && allocatedChunksCount < maxChunksCount) {
+            allocatedChunksCount++;
+            objectInfosChunk = new ObjectInfosChunk(CHUNK_RECORDS_SIZE);
+            return;
+        }
+
+        try {
+            // blocks while all other chunks are being sorted
+            objectInfosChunk = freeChunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for free chunk", e);
+        }
     }
 
-    private void createNewSortedFile() {
+    private void awaitSortedFiles() throws IOException {
+        if (sortingExecutor == null) {
+            return;
+        }
+
+        try {
+            for (Future<File> sortedFileFuture : sortedFileFutures) {
+                sortedFiles.add(sortedFileFuture.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for sorted files", e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to sort chunk", e.getCause());
+        } finally {
+            sortingExecutor.shutdownNow();
+            freeChunks.clear();
+        }
+
+        sortedFileFutures = null;
+    }
+
+    private File createNewSortedFile(ObjectInfosChunk objectInfosChunk) {
         String newSortedFilePrefix = "myhprof_obj_info_chunk_" + objectInfosChunk.size() + "_";
 
         try {
@@ -267,17 +1019,10 @@ public class ObjectInfoBinarySearchFileStorage {
                 new FileOutputStream(newSortedFile))) {
                 DataOutput output = new DataOutputStream(bufferedOutputStream);
 
-                objectInfosChunk.sort(Comparator.comparing(objectInfo -> objectInfo.id));
-
-                for (ObjectInfo objectInfo : objectInfosChunk) {
-                    output.writeLong(objectInfo.id);
-                    output.writeLong(objectInfo.typeId);
-                    output.writeLong(objectInfo.dumpFileOffset);
-                    output.writeByte(objectInfo.type.ordinal());
-                }
+                objectInfosChunk.sortAndWrite(output);
             }
 
-            sortedFiles.add(newSortedFile);
+            return newSortedFile;
         } catch (IOException e) {
             throw new RuntimeException("failed to create new sorted file", e);
         }
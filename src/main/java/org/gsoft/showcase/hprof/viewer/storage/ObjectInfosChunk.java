@@ -0,0 +1,140 @@
+package org.gsoft.showcase.hprof.viewer.storage;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fixed capacity chunk of object infos stored in parallel primitive arrays, so that registering an object
+ * allocates nothing. Sorted by id with LSD radix sort over an index permutation.
+ */
+class ObjectInfosChunk {
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int RADIX_MASK = RADIX - 1;
+
+    static final int RECORD_SIZE = 8 + 8 + 4; // id + offset + class ordinal and type
+
+    private final long[] ids;
+    private final long[] dumpFileOffsets;
+    private final int[] classOrdinalsAndTypes;
+
+    // sort buffers; ids are carried along with indexes for sequential access during passes
+    private final long[] keys;
+    private final long[] keysBuffer;
+    private final int[] order;
+    private final int[] orderBuffer;
+    private final int[] digitCounts = new int[RADIX];
+
+    private int size;
+
+    ObjectInfosChunk(int capacity) {
+        ids = new long[capacity];
+        dumpFileOffsets = new long[capacity];
+        classOrdinalsAndTypes = new int[capacity];
+
+        keys = new long[capacity];
+        keysBuffer = new long[capacity];
+        order = new int[capacity];
+        orderBuffer = new int[capacity];
+    }
+
+    /**
+     * @return heap taken by arrays of chunk of given capacity
+     */
+    static long heapBytesSize(int capacity) {
+        return (long) capacity * (RECORD_SIZE + 8 + 8 + 4 + 4); // records and sort buffers
+    }
+
+    void add(long id, long dumpFileOffset, int classOrdinalAndType) {
+        ids[size] = id;
+        dumpFileOffsets[size] = dumpFileOffset;
+        classOrdinalsAndTypes[size] = classOrdinalAndType;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == ids.length;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sorts records by id (signed order) and writes them to output.
+     */
+    void sortAndWrite(DataOutput output) throws IOException {
+        sort();
+
+        for (int i = 0; i < size; i++) {
+            int idx = order[i];
+
+            output.writeLong(ids[idx]);
+            output.writeLong(dumpFileOffsets[idx]);
+            output.writeInt(classOrdinalsAndTypes[idx]);
+        }
+    }
+
+    private void sort() {
+        long[] keysFrom = keys;
+        long[] keysTo = keysBuffer;
+        int[] from = order;
+        int[] to = orderBuffer;
+
+        for (int i = 0; i < size; i++) {
+            keysFrom[i] = ids[i];
+            from[i] = i;
+        }
+
+        if (size == 0) {
+            return;
+        }
+
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+            // flipping sign bit on the last digit makes unsigned digit order match signed id order
+            long flipMask = shift == Long.SIZE - RADIX_BITS ? Long.MIN_VALUE : 0;
+
+            Arrays.fill(digitCounts, 0);
+
+            for (int i = 0; i < size; i++) {
+                digitCounts[(int) (((keysFrom[i] ^ flipMask) >>> shift) & RADIX_MASK)]++;
+            }
+
+            if (digitCounts[(int) (((keysFrom[0] ^ flipMask) >>> shift) & RADIX_MASK)] == size) {
+                continue; // all records share this digit (typical for high bytes of ids)
+            }
+
+            int position = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int count = digitCounts[digit];
+                digitCounts[digit] = position;
+                position += count;
+            }
+
+            for (int i = 0; i < size; i++) {
+                long key = keysFrom[i];
+                int target = digitCounts[(int) (((key ^ flipMask) >>> shift) & RADIX_MASK)]++;
+                keysTo[target] = key;
+                to[target] = from[i];
+            }
+
+            long[] keysSwap = keysFrom;
+            keysFrom = keysTo;
+            keysTo = keysSwap;
+
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+
+        if (from != order) {
+            System.arraycopy(from, 0, order, 0, size);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.gsoft.showcase.hprof.viewer.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of off-heap buffers with power of two sizes, carved out of large direct slabs, so that thousands of small
+ * per-type buffers neither take Java heap nor allocate a direct buffer each. Released buffers are reused by buffers
+ * of the same size. Not thread-safe.
+ */
+class SegmentBuffersArena {
+
+    private static final int SLAB_BYTES_SIZE = 1024 * 1024;
+
+    private final int minBufferBytesSize;
+    private final List<ArrayDeque<ByteBuffer>> freeBuffersBySizeClass;
+
+    private ByteBuffer slab = ByteBuffer.allocateDirect(0);
+
+    /**
+     * @param minBufferBytesSize size of the smallest buffer; power of two
+     * @param sizeClassesCount   number of buffer sizes, each twice as large as the previous one
+     */
+    SegmentBuffersArena(int minBufferBytesSize, int sizeClassesCount) {
+        if ((minBufferBytesSize << (sizeClassesCount - 1)) > SLAB_BYTES_SIZE) {
+            throw new IllegalArgumentException("largest buffer doesn't fit in slab");
+        }
+
+        this.minBufferBytesSize = minBufferBytesSize;
+
+        freeBuffersBySizeClass = new ArrayList<>(sizeClassesCount);
+
+        for (int i = 0; i < sizeClassesCount; i++) {
+            freeBuffersBySizeClass.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * @return buffer of {@code minBufferBytesSize << sizeClass} bytes; its content is undefined
+     */
+    ByteBuffer allocate(int sizeClass) {
+        ByteBuffer buffer = freeBuffersBySizeClass.get(sizeClass).poll();
+
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+
+        int bytesSize = minBufferBytesSize << sizeClass;
+
+        if (slab.remaining() < bytesSize) {
+            // rest of the slab is dropped; it is smaller than the largest buffer
+            slab = ByteBuffer.allocateDirect(SLAB_BYTES_SIZE);
+        }
+
+        slab.limit(slab.position() + bytesSize);
+        buffer = slab.slice();
+
+        slab.position(slab.limit());
+        slab.limit(slab.capacity());
+
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer, int sizeClass) {
+        freeBuffersBySizeClass.get(sizeClass).push(buffer);
+    }
+}
@@ -1,30 +1,148 @@
 package org.gsoft.showcase.hprof.viewer.storage;
 
+import org.gsoft.showcase.hprof.viewer.util.LongLongHashMap;
+import org.gsoft.showcase.hprof.viewer.util.LongObjectHashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-
+import java.util.function.LongConsumer;
+
+/**
+ * Ids of instances of every type, in order of registration.
+ * <p>
+ * While registering, ids are buffered per type and written to a segments file in segments, so instances of all types
+ * are interleaved there. Segments of a type grow geometrically, so that types with few instances take little memory
+ * and types with many instances are flushed rarely; per-type buffers are off-heap, taken from a pool. Segments of all
+ * types are appended to the file through a single large buffer.
+ * <p>
+ * {@link #finishRegistering()} then gathers segments of every type into one contiguous run of storage file, written
+ * sequentially, so that any page of instances is read with a single positional read. Once finished, the storage is
+ * read only and may be listed by several threads at once.
+ */
 public class TypeInstancesFileStorage {
 
-    private static final int INSTANCES_PER_SEGMENT = 100;
+    private static final int MIN_SEGMENT_INSTANCES = 4;
+    private static final int SEGMENT_SIZE_CLASSES_COUNT = 12; // up to 8192 instances per segment
+    private static final int MAX_SEGMENT_BYTES_SIZE = MIN_SEGMENT_INSTANCES * 8 << (SEGMENT_SIZE_CLASSES_COUNT - 1);
+
+    private static final int APPEND_BUFFER_BYTES_SIZE = 1024 * 1024;
+    private static final int COMPACTION_BUFFER_BYTES_SIZE = 1024 * 1024;
+
+    private final File storageFile;
+    private final LongObjectHashMap<InstancesIds> instancesIdsByTypeIdMap;
+
+    // while registering
+    private File segmentsFile;
+    private FileChannel segmentsChannel;
+    private SegmentBuffersArena segmentBuffersArena;
+    private ByteBuffer appendBuffer;
+    private long segmentsFileSize; // including appended bytes not yet written
+
+    // heap dump segment instances are registered from; -1 if not tracked (storage is not a shard)
+    private int currentDumpSegmentIdx = -1;
 
-    private final RandomAccessFile file;
-    private final Map<Long, InstancesIds> instancesIdsByTypeIdMap = new HashMap<>();
+    // once finished
+    private FileChannel storageChannel;
 
-    private boolean finished = false;
+    private boolean finished;
 
     public TypeInstancesFileStorage() throws IOException {
+        this(createTempFile());
+    }
+
+    /**
+     * @param storageFile file to keep instances ids in; overwritten
+     */
+    public TypeInstancesFileStorage(File storageFile) throws IOException {
+        this.storageFile = storageFile;
+
+        segmentsFile = new File(storageFile.getPath() + ".segments");
+        segmentsFile.deleteOnExit();
+
+        RandomAccessFile segments = new RandomAccessFile(segmentsFile, "rw");
+        segments.setLength(0);
+        segmentsChannel = segments.getChannel();
+
+        segmentBuffersArena = new SegmentBuffersArena(MIN_SEGMENT_INSTANCES * 8, SEGMENT_SIZE_CLASSES_COUNT);
+        appendBuffer = ByteBuffer.allocateDirect(APPEND_BUFFER_BYTES_SIZE);
+
+        instancesIdsByTypeIdMap = new LongObjectHashMap<>();
+        finished = false;
+    }
+
+    private TypeInstancesFileStorage(File storageFile, FileChannel storageChannel,
+                                     LongObjectHashMap<InstancesIds> instancesIdsByTypeIdMap) {
+        this.storageFile = storageFile;
+        this.storageChannel = storageChannel;
+        this.instancesIdsByTypeIdMap = instancesIdsByTypeIdMap;
+        finished = true;
+    }
+
+    private static File createTempFile() throws IOException {
         File tempFile = File.createTempFile("myhprof_class_instances_", ".tmp");
         tempFile.deleteOnExit();
+        return tempFile;
+    }
+
+    /**
+     * Opens storage previously filled in given file.
+     *
+     * @param metadata data written by {@link #writeMetadata(DataOutput)}
+     */
+    public static TypeInstancesFileStorage load(File storageFile, DataInput metadata) throws IOException {
+        int typesCount = metadata.readInt();
+
+        LongObjectHashMap<InstancesIds> instancesIdsByTypeIdMap = new LongObjectHashMap<>(typesCount);
+
+        for (int i = 0; i < typesCount; i++) {
+            long typeId = metadata.readLong();
+
+            InstancesIds ids = new InstancesIds();
+            ids.runOffset = metadata.readLong();
+            ids.count = metadata.readLong();
+
+            instancesIdsByTypeIdMap.put(typeId, ids);
+        }
+
+        return new TypeInstancesFileStorage(storageFile, new RandomAccessFile(storageFile, "r").getChannel(),
+                                            instancesIdsByTypeIdMap);
+    }
+
+    /**
+     * Writes everything (except storage file itself) needed to {@link #load(File, DataInput)} this storage.
+     */
+    public void writeMetadata(DataOutput metadata) throws IOException {
+        if (!finished) {
+            throw new RuntimeException("not finished!");
+        }
+
+        metadata.writeInt(instancesIdsByTypeIdMap.size());
+
+        for (long typeId : instancesIdsByTypeIdMap.keys()) {
+            InstancesIds ids = instancesIdsByTypeIdMap.get(typeId);
+
+            metadata.writeLong(typeId);
+            metadata.writeLong(ids.runOffset);
+            metadata.writeLong(ids.count);
+        }
+    }
 
-        file = new RandomAccessFile(tempFile, "rw");
+    /**
+     * Marks following instances as registered from given heap dump segment, so that instances of shards are merged
+     * in dump order; see {@link #mergeShards(List)}.
+     *
+     * @param dumpSegmentIdx index of heap dump segment; ascending from call to call
+     */
+    public void startDumpSegment(int dumpSegmentIdx) {
+        currentDumpSegmentIdx = dumpSegmentIdx;
     }
 
     public void registerInstance(long typeId, long id) {
@@ -32,136 +150,408 @@ public class TypeInstancesFileStorage {
             throw new RuntimeException("already finished registering");
         }
 
-        if (instancesIdsByTypeIdMap.containsKey(typeId)) {
-            InstancesIds ids = instancesIdsByTypeIdMap.get(typeId);
+        InstancesIds ids = instancesIdsByTypeIdMap.get(typeId);
+
+        if (ids == null) {
+            ids = new InstancesIds();
+            ids.inMemorySegment = segmentBuffersArena.allocate(0);
+
+            instancesIdsByTypeIdMap.put(typeId, ids);
+        }
+
+        if (currentDumpSegmentIdx != -1 && ids.lastDumpSegmentIdx() != currentDumpSegmentIdx) {
+            ids.addDumpSegmentRun(currentDumpSegmentIdx);
+        }
 
-            ids.inMemorySegmentBuffer.put(id);
+        ids.inMemorySegment.putLong(id);
+        ids.count++;
 
-            if (ids.inMemorySegmentBuffer.remaining() == 0) {
-                writeSegmentToFile(ids);
+        if (!ids.inMemorySegment.hasRemaining()) {
+            writeSegmentToFile(ids);
+
+            if (ids.segmentSizeClass < SEGMENT_SIZE_CLASSES_COUNT - 1) {
+                segmentBuffersArena.release(ids.inMemorySegment, ids.segmentSizeClass);
+                ids.segmentSizeClass++;
+                ids.inMemorySegment = segmentBuffersArena.allocate(ids.segmentSizeClass);
+            } else {
+                ids.inMemorySegment.clear();
             }
-        } else {
-            InstancesIds ids = new InstancesIds();
+        }
+    }
 
-            ids.inMemorySegmentBuffer.put(id);
+    /**
+     * Appends all instances registered in given shards (filled by other threads from heap dump segments marked with
+     * {@link #startDumpSegment(int)}) after own ones. Instances of every type are appended in order of dump segments
+     * they were registered from, whichever shard has registered them, so the order doesn't depend on how segments
+     * were shared between threads. Shard storages are closed and deleted afterwards.
+     */
+    public void mergeShards(List<TypeInstancesFileStorage> shards) throws IOException {
+        if (finished) {
+            throw new RuntimeException("already finished registering");
+        }
 
-            instancesIdsByTypeIdMap.put(typeId, ids);
+        for (TypeInstancesFileStorage shard : shards) {
+            if (shard.finished) {
+                throw new RuntimeException("already finished registering");
+            }
+
+            if (shard.currentDumpSegmentIdx == -1 && shard.instancesIdsByTypeIdMap.size() > 0) {
+                throw new RuntimeException("dump segments of shard are not marked");
+            }
+
+            // no need to gather shard's segments, as they are re-registered here anyway
+            shard.flushSegments();
+        }
+
+        // segment being read of every shard; reused from type to type
+        ByteBuffer[] segmentBuffers = new ByteBuffer[shards.size()];
+
+        for (int i = 0; i < segmentBuffers.length; i++) {
+            segmentBuffers[i] = ByteBuffer.allocate(MAX_SEGMENT_BYTES_SIZE);
+        }
+
+        LongLongHashMap mergedTypeIds = new LongLongHashMap();
+
+        for (TypeInstancesFileStorage shard : shards) {
+            for (long typeId : shard.instancesIdsByTypeIdMap.keys()) {
+                if (mergedTypeIds.containsKey(typeId)) {
+                    continue;
+                }
+
+                mergedTypeIds.put(typeId, 1);
+
+                List<ShardInstancesReader> readers = new ArrayList<>(shards.size());
+
+                for (int i = 0; i < shards.size(); i++) {
+                    InstancesIds shardIds = shards.get(i).instancesIdsByTypeIdMap.get(typeId);
+
+                    if (shardIds != null) {
+                        readers.add(new ShardInstancesReader(shards.get(i).segmentsChannel, shardIds,
+                                                             segmentBuffers[i]));
+                    }
+                }
+
+                // every dump segment is indexed by one shard, so taking runs with the least dump segment first
+                while (true) {
+                    ShardInstancesReader nextRunReader = null;
+
+                    for (ShardInstancesReader reader : readers) {
+                        if (reader.hasNextRun() && (nextRunReader == null
+                                                    || reader.nextRunDumpSegmentIdx()
+                                                       < nextRunReader.nextRunDumpSegmentIdx())) {
+                            nextRunReader = reader;
+                        }
+                    }
+
+                    if (nextRunReader == null) {
+                        break;
+                    }
+
+                    nextRunReader.readNextRun(instanceId -> registerInstance(typeId, instanceId));
+                }
+            }
+        }
+
+        for (TypeInstancesFileStorage shard : shards) {
+            shard.closeSegments();
+            shard.storageFile.delete();
         }
     }
 
-    public void finishRegistering() {
+    /**
+     * Gathers segments of every type into contiguous run of storage file, types one after another; storage file is
+     * written sequentially, segments file is read forward only within every type.
+     */
+    public void finishRegistering() throws IOException {
         if (finished) {
             throw new RuntimeException("already finished!");
         }
 
-        // writing in memory segments
+        flushSegments();
 
-        instancesIdsByTypeIdMap.values().forEach(instancesIds -> {
-            writeSegmentToFile(instancesIds);
+        try (RandomAccessFile storage = new RandomAccessFile(storageFile, "rw")) {
+            storage.setLength(0);
 
-            instancesIds.inMemorySegmentByteBuffer = null;
-            instancesIds.inMemorySegmentBuffer = null;
-        });
+            FileChannel outputChannel = storage.getChannel();
+            ByteBuffer outputBuffer = ByteBuffer.allocateDirect(COMPACTION_BUFFER_BYTES_SIZE);
+
+            long runOffset = 0;
+
+            for (long typeId : instancesIdsByTypeIdMap.keys()) {
+                InstancesIds ids = instancesIdsByTypeIdMap.get(typeId);
+
+                for (int i = 0; i < ids.segmentsCount; i++) {
+                    if (outputBuffer.remaining() < MAX_SEGMENT_BYTES_SIZE) {
+                        outputBuffer.flip();
+                        writeFully(outputChannel, outputBuffer);
+                    }
+
+                    outputBuffer.limit(outputBuffer.position() + ids.segmentInstancesCount(i) * 8);
+                    readFully(segmentsChannel, outputBuffer, ids.segmentsOffsets[i]);
+                    outputBuffer.limit(outputBuffer.capacity());
+                }
+
+                ids.runOffset = runOffset;
+                ids.segmentsOffsets = null;
+
+                runOffset += ids.count * 8;
+            }
+
+            outputBuffer.flip();
+            writeFully(outputChannel, outputBuffer);
+        }
+
+        closeSegments();
+
+        storageChannel = new RandomAccessFile(storageFile, "r").getChannel();
 
         finished = true;
     }
 
-    public List<Long> listInstancesIds(long typeId, int offset, int limit) throws IOException {
+    public long[] listInstancesIds(long typeId, long offset, int limit) throws IOException {
         if (!finished) {
             throw new RuntimeException("not finished!");
         }
 
-        if (!instancesIdsByTypeIdMap.containsKey(typeId)) {
+        InstancesIds ids = instancesIdsByTypeIdMap.get(typeId);
+
+        if (ids == null) {
             throw new RuntimeException("class not found with id: " + typeId);
         }
 
-        InstancesIds ids = instancesIdsByTypeIdMap.get(typeId);
+        int instancesToRead = (int) Math.max(0, Math.min(limit, ids.count - offset));
 
-        int segmentsToSkip = offset / INSTANCES_PER_SEGMENT;
+        ByteBuffer instancesByteBuffer = ByteBuffer.allocate(instancesToRead * 8);
+        readFully(storageChannel, instancesByteBuffer, ids.runOffset + offset * 8);
 
-        if (segmentsToSkip >= ids.segmentsOffsets.size()) {
-            return Collections.emptyList();
-        }
+        instancesByteBuffer.flip();
 
-        int offsetInFirstSegment = offset - segmentsToSkip * INSTANCES_PER_SEGMENT;
+        long[] instancesIds = new long[instancesToRead];
+        instancesByteBuffer.asLongBuffer().get(instancesIds);
 
-        List<Long> instancesIds = new ArrayList<>(limit);
+        return instancesIds;
+    }
 
-        //
-        // reading from first segment
-        //
+    /**
+     * Closes files of the storage, which are kept; storage is not usable afterwards.
+     */
+    public void close() {
+        closeQuietly(segmentsChannel);
+        closeQuietly(storageChannel);
+    }
 
-        file.seek(ids.segmentsOffsets.get(segmentsToSkip));
-        file.skipBytes(offsetInFirstSegment * 8);
+    /**
+     * Closes and deletes files of the storage, whether finished or not; used to clean up after failed or cancelled
+     * indexing. Storage is not usable afterwards.
+     */
+    public void discard() {
+        closeQuietly(segmentsChannel);
+        closeQuietly(storageChannel);
+
+        if (segmentsFile != null) {
+            segmentsFile.delete();
+        }
 
-        int instancesToReadFirstSegment;
+        storageFile.delete();
 
-        if (ids.segmentsOffsets.size() == 1) {
-            // special case - first segment is also the last one; which may be not full
-            // TODO can we refactor to avoid this?
-            instancesToReadFirstSegment = Math.min(limit, ids.lastFileSegmentInstancesCount);
-        } else {
-            instancesToReadFirstSegment = Math.min(limit, INSTANCES_PER_SEGMENT - offsetInFirstSegment);
+        segmentsChannel = null;
+        segmentsFile = null;
+        segmentBuffersArena = null;
+        appendBuffer = null;
+        storageChannel = null;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
         }
 
-        for (int j = 0; j < instancesToReadFirstSegment; j++) {
-            instancesIds.add(file.readLong());
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // file is not used anymore anyway
         }
+    }
 
-        //
-        // reading from other segments except last one
-        //
+    /**
+     * Writes in memory segments of all types to segments file and releases their buffers.
+     */
+    private void flushSegments() throws IOException {
+        instancesIdsByTypeIdMap.forEach((typeId, instancesIds) -> {
+            if (instancesIds.inMemorySegment.position() != 0) {
+                writeSegmentToFile(instancesIds);
+            }
 
-        int remainingInstances = limit - instancesToReadFirstSegment;
+            instancesIds.inMemorySegment = null;
+        });
 
-        for (int i = segmentsToSkip + 1; i < (ids.segmentsOffsets.size() - 1) && remainingInstances != 0; i++) {
-            file.seek(ids.segmentsOffsets.get(i));
+        segmentBuffersArena = null;
 
-            int instancesToRead = Math.min(remainingInstances, INSTANCES_PER_SEGMENT);
+        appendBuffer.flip();
+        writeFully(segmentsChannel, appendBuffer);
+        appendBuffer = null;
+    }
 
-            for (int j = 0; j < instancesToRead; j++) {
-                instancesIds.add(file.readLong());
-            }
+    private void closeSegments() throws IOException {
+        segmentsChannel.close();
+        segmentsChannel = null;
+        segmentsFile.delete();
+        segmentsFile = null;
+    }
+
+    private void writeSegmentToFile(InstancesIds ids) {
+        ByteBuffer segment = ids.inMemorySegment;
+        segment.flip();
 
-            remainingInstances -= instancesToRead;
+        try {
+            if (appendBuffer.remaining() < segment.remaining()) {
+                appendBuffer.flip();
+                writeFully(segmentsChannel, appendBuffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("failed to write segments to file", e);
         }
 
-        //
-        // reading from last segment
-        //
+        ids.addSegmentOffset(segmentsFileSize);
+        segmentsFileSize += segment.remaining();
 
-        if (ids.segmentsOffsets.size() > 1) {
-            file.seek(ids.segmentsOffsets.get(ids.segmentsOffsets.size() - 1));
+        appendBuffer.put(segment);
+    }
 
-            int instancesToReadLastSegment = Math.min(remainingInstances, ids.lastFileSegmentInstancesCount);
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
 
-            for (int j = 0; j < instancesToReadLastSegment; j++) {
-                instancesIds.add(file.readLong());
+            if (read == -1) {
+                throw new EOFException("unexpected end of instances file at " + position);
             }
+
+            position += read;
         }
+    }
 
-        return instancesIds;
+    /**
+     * Writes flipped buffer and clears it.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
     }
 
-    private void writeSegmentToFile(InstancesIds ids) {
-        try {
-            ids.lastFileSegmentInstancesCount = INSTANCES_PER_SEGMENT - ids.inMemorySegmentBuffer.remaining();
-            ids.segmentsOffsets.add(file.length());
+    private static class InstancesIds {
+        long count;
+
+        // while registering; every segment is twice as large as the previous one (up to the maximum size), all of
+        // them are full except the last one
+        long[] segmentsOffsets = new long[4];
+        int segmentsCount;
+        ByteBuffer inMemorySegment;
+        int segmentSizeClass;
+
+        // only if dump segments are tracked: first instances of runs registered from successive heap dump segments
+        int[] dumpSegmentRunsIdxs;
+        long[] dumpSegmentRunsFirstInstances;
+        int dumpSegmentRunsCount;
+
+        // once finished
+        long runOffset;
+
+        void addSegmentOffset(long segmentOffset) {
+            if (segmentsCount == segmentsOffsets.length) {
+                segmentsOffsets = Arrays.copyOf(segmentsOffsets, segmentsCount * 2);
+            }
 
-            file.seek(file.length());
-            file.write(ids.inMemorySegmentByteBuffer.array());
+            segmentsOffsets[segmentsCount++] = segmentOffset;
+        }
 
-            ids.inMemorySegmentBuffer.clear();
-        } catch (IOException e) {
-            throw new RuntimeException("failed to write segment to file", e);
+        void addDumpSegmentRun(int dumpSegmentIdx) {
+            if (dumpSegmentRunsIdxs == null) {
+                dumpSegmentRunsIdxs = new int[4];
+                dumpSegmentRunsFirstInstances = new long[4];
+            } else if (dumpSegmentRunsCount == dumpSegmentRunsIdxs.length) {
+                dumpSegmentRunsIdxs = Arrays.copyOf(dumpSegmentRunsIdxs, dumpSegmentRunsCount * 2);
+                dumpSegmentRunsFirstInstances = Arrays.copyOf(dumpSegmentRunsFirstInstances, dumpSegmentRunsCount * 2);
+            }
+
+            dumpSegmentRunsIdxs[dumpSegmentRunsCount] = dumpSegmentIdx;
+            dumpSegmentRunsFirstInstances[dumpSegmentRunsCount] = count;
+            dumpSegmentRunsCount++;
+        }
+
+        int lastDumpSegmentIdx() {
+            return dumpSegmentRunsCount == 0 ? -1 : dumpSegmentRunsIdxs[dumpSegmentRunsCount - 1];
+        }
+
+        int segmentInstancesCount(int segmentIdx) {
+            int sizeClass = Math.min(segmentIdx, SEGMENT_SIZE_CLASSES_COUNT - 1);
+
+            // instances in preceding segments; sizes grow from MIN_SEGMENT_INSTANCES by doubling
+            long precedingCount = segmentIdx <= sizeClass
+                                  ? (long) MIN_SEGMENT_INSTANCES * ((1L << segmentIdx) - 1)
+                                  : (long) MIN_SEGMENT_INSTANCES * ((1L << sizeClass) - 1)
+                                    + (long) (segmentIdx - sizeClass) * (MIN_SEGMENT_INSTANCES << sizeClass);
+
+            return (int) Math.min(MIN_SEGMENT_INSTANCES << sizeClass, count - precedingCount);
         }
     }
 
-    private static class InstancesIds {
-        List<Long> segmentsOffsets = new ArrayList<>();
-        int lastFileSegmentInstancesCount = -1;
+    /**
+     * Reads instances of one type of a shard run by run, in order of registration; every segment is read from file
+     * once, however many runs it holds.
+     */
+    private static class ShardInstancesReader {
+        private final FileChannel segmentsChannel;
+        private final InstancesIds ids;
+        private final ByteBuffer segmentBuffer;
+
+        private int runIdx;
+        private int segmentIdx = -1; // segment in buffer
+        private int segmentPosition; // instances of segment in buffer read so far
+
+        ShardInstancesReader(FileChannel segmentsChannel, InstancesIds ids, ByteBuffer segmentBuffer) {
+            this.segmentsChannel = segmentsChannel;
+            this.ids = ids;
+            this.segmentBuffer = segmentBuffer;
+        }
+
+        boolean hasNextRun() {
+            return runIdx < ids.dumpSegmentRunsCount;
+        }
+
+        int nextRunDumpSegmentIdx() {
+            return ids.dumpSegmentRunsIdxs[runIdx];
+        }
+
+        void readNextRun(LongConsumer instanceIdConsumer) throws IOException {
+            long runEnd = runIdx + 1 < ids.dumpSegmentRunsCount ? ids.dumpSegmentRunsFirstInstances[runIdx + 1]
+                                                                : ids.count;
+            long remaining = runEnd - ids.dumpSegmentRunsFirstInstances[runIdx];
+
+            runIdx++;
+
+            while (remaining > 0) {
+                if (segmentIdx == -1 || segmentPosition == ids.segmentInstancesCount(segmentIdx)) {
+                    segmentIdx++;
+                    segmentPosition = 0;
+
+                    segmentBuffer.clear();
+                    segmentBuffer.limit(ids.segmentInstancesCount(segmentIdx) * 8);
+                    readFully(segmentsChannel, segmentBuffer, ids.segmentsOffsets[segmentIdx]);
+                }
 
-        ByteBuffer inMemorySegmentByteBuffer = ByteBuffer.allocate(INSTANCES_PER_SEGMENT * 8);
-        LongBuffer inMemorySegmentBuffer = inMemorySegmentByteBuffer.asLongBuffer();
+                int instancesToRead = (int) Math.min(remaining, ids.segmentInstancesCount(segmentIdx)
+                                                                - segmentPosition);
+
+                for (int i = 0; i < instancesToRead; i++) {
+                    instanceIdConsumer.accept(segmentBuffer.getLong((segmentPosition + i) * 8));
+                }
+
+                remaining -= instancesToRead;
+                segmentPosition += instancesToRead;
+            }
+        }
     }
 }
@@ -0,0 +1,107 @@
+package org.gsoft.showcase.hprof.viewer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps class object ids to dense ordinals (in order of first registration) and back.
+ * Open addressing with linear probing; no boxing on either path.
+ */
+public class ClassDictionary {
+
+    private static final int INITIAL_CAPACITY = 1024; // power of two
+
+    private long[] slotClassIds = new long[INITIAL_CAPACITY];
+    private int[] slotOrdinals = new int[INITIAL_CAPACITY]; // ordinal + 1; 0 marks empty slot
+
+    private long[] classIdsByOrdinal = new long[INITIAL_CAPACITY];
+    private int size;
+
+    // consecutive objects of the same class are common in heap dumps
+    private long lastClassId;
+    private int lastOrdinal = -1;
+
+    public int getOrAddOrdinal(long classId) {
+        if (lastOrdinal != -1 && lastClassId == classId) {
+            return lastOrdinal;
+        }
+
+        int mask = slotClassIds.length - 1;
+        int slot = LongHashing.hash(classId) & mask;
+
+        while (slotOrdinals[slot] != 0) {
+            if (slotClassIds[slot] == classId) {
+                lastClassId = classId;
+                lastOrdinal = slotOrdinals[slot] - 1;
+                return lastOrdinal;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int ordinal = size++;
+
+        slotClassIds[slot] = classId;
+        slotOrdinals[slot] = ordinal + 1;
+
+        if (ordinal == classIdsByOrdinal.length) {
+            classIdsByOrdinal = Arrays.copyOf(classIdsByOrdinal, ordinal * 2);
+        }
+        classIdsByOrdinal[ordinal] = classId;
+
+        if (size * 2 > slotClassIds.length) {
+            rehash(slotClassIds.length * 2);
+        }
+
+        lastClassId = classId;
+        lastOrdinal = ordinal;
+        return ordinal;
+    }
+
+    public long getClassId(int ordinal) {
+        return classIdsByOrdinal[ordinal];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(size);
+
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            output.writeLong(classIdsByOrdinal[ordinal]);
+        }
+    }
+
+    public static ClassDictionary read(DataInput input) throws IOException {
+        ClassDictionary dictionary = new ClassDictionary();
+
+        int size = input.readInt();
+
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            dictionary.getOrAddOrdinal(input.readLong());
+        }
+
+        return dictionary;
+    }
+
+    private void rehash(int newCapacity) {
+        slotClassIds = new long[newCapacity];
+        slotOrdinals = new int[newCapacity];
+
+        int mask = newCapacity - 1;
+
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = LongHashing.hash(classIdsByOrdinal[ordinal]) & mask;
+
+            while (slotOrdinals[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            slotClassIds[slot] = classIdsByOrdinal[ordinal];
+            slotOrdinals[slot] = ordinal + 1;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.gsoft.showcase.hprof.viewer.util;
+
+final class LongHashing {
+
+    private LongHashing() {
+    }
+
+    /**
+     * Object ids are aligned addresses, so low bits alone are poor hash; mixing all bits in.
+     */
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return power of two capacity keeping load factor at most 1/2
+     */
+    static int capacityFor(int expectedSize, int minCapacity) {
+        int capacity = minCapacity;
+
+        while (capacity < expectedSize * 2) {
+            capacity *= 2;
+        }
+
+        return capacity;
+    }
+}
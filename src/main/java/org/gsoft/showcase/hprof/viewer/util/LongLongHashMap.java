@@ -0,0 +1,102 @@
+package org.gsoft.showcase.hprof.viewer.util;
+
+/**
+ * Map with primitive long keys and values; open addressing with linear probing, no boxing. No removal.
+ */
+public class LongLongHashMap {
+
+    private static final int MIN_CAPACITY = 16; // power of two
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+
+    public LongLongHashMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    public LongLongHashMap(int expectedSize) {
+        allocate(LongHashing.capacityFor(expectedSize, MIN_CAPACITY));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(long key) {
+        return used[slotOf(key)];
+    }
+
+    public long get(long key, long defaultValue) {
+        int slot = slotOf(key);
+        return used[slot] ? values[slot] : defaultValue;
+    }
+
+    public void put(long key, long value) {
+        int slot = slotOf(key);
+
+        if (used[slot]) {
+            values[slot] = value;
+            return;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        used[slot] = true;
+
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * @return snapshot of keys, in no particular order
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int i = 0;
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot]) {
+                result[i++] = keys[slot];
+            }
+        }
+
+        return result;
+    }
+
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        int slot = LongHashing.hash(key) & mask;
+
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        allocate(oldKeys.length * 2);
+
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldUsed[oldSlot]) {
+                int slot = slotOf(oldKeys[oldSlot]);
+                keys[slot] = oldKeys[oldSlot];
+                values[slot] = oldValues[oldSlot];
+                used[slot] = true;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+    }
+}
@@ -0,0 +1,161 @@
+package org.gsoft.showcase.hprof.viewer.util;
+
+import java.util.function.LongFunction;
+
+/**
+ * Map with primitive long keys; open addressing with linear probing, so neither lookups nor insertions box keys.
+ * Null values are allowed and distinct from absent keys. No removal.
+ */
+public class LongObjectHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16; // power of two
+
+    private long[] keys;
+    private Object[] values;
+    private boolean[] used;
+    private int size;
+
+    public LongObjectHashMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    public LongObjectHashMap(int expectedSize) {
+        allocate(LongHashing.capacityFor(expectedSize, MIN_CAPACITY));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(long key) {
+        return used[slotOf(key)];
+    }
+
+    public V get(long key) {
+        return getOrDefault(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(long key, V defaultValue) {
+        int slot = slotOf(key);
+        return used[slot] ? (V) values[slot] : defaultValue;
+    }
+
+    /**
+     * @return previous value
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int slot = slotOf(key);
+
+        if (used[slot]) {
+            V previousValue = (V) values[slot];
+            values[slot] = value;
+            return previousValue;
+        }
+
+        insert(slot, key, value);
+        return null;
+    }
+
+    /**
+     * @return current value if present, otherwise null
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value) {
+        int slot = slotOf(key);
+
+        if (used[slot]) {
+            return (V) values[slot];
+        }
+
+        insert(slot, key, value);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction) {
+        int slot = slotOf(key);
+
+        if (used[slot]) {
+            return (V) values[slot];
+        }
+
+        V value = mappingFunction.apply(key);
+        insert(slot, key, value);
+        return value;
+    }
+
+    /**
+     * @return snapshot of keys, in no particular order
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int i = 0;
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot]) {
+                result[i++] = keys[slot];
+            }
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> consumer) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot]) {
+                consumer.accept(keys[slot], (V) values[slot]);
+            }
+        }
+    }
+
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        int slot = LongHashing.hash(key) & mask;
+
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void insert(int slot, long key, V value) {
+        keys[slot] = key;
+        values[slot] = value;
+        used[slot] = true;
+
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        allocate(oldKeys.length * 2);
+
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldUsed[oldSlot]) {
+                int slot = slotOf(oldKeys[oldSlot]);
+                keys[slot] = oldKeys[oldSlot];
+                values[slot] = oldValues[oldSlot];
+                used[slot] = true;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        used = new boolean[capacity];
+    }
+
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+}
@@ -0,0 +1,173 @@
+package org.gsoft.showcase.hprof.viewer.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * LRU cache bounded by total estimated weight (in bytes) of its values rather than by entries count.
+ * <p>
+ * Values must not be null. They are loaded outside of the cache lock, so a value requested by two threads at once may
+ * be loaded twice; the one put last wins. Loading exceptions are propagated and nothing is cached.
+ */
+public class WeightedLruCache<K, V> {
+
+    private volatile long maxWeight;
+    private final ToLongFunction<V> weigher;
+
+    private final LinkedHashMap<K, WeightedValue<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param maxWeight maximum total weight of values; a single value heavier than that is not cached
+     * @param weigher   estimates value size in bytes
+     */
+    public WeightedLruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = getIfPresent(key);
+
+        if (value == null) {
+            value = loader.apply(key);
+            put(key, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * @return cached value; null if there is none
+     */
+    public synchronized V getIfPresent(K key) {
+        WeightedValue<V> cached = entries.get(key);
+
+        if (cached == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return cached.value;
+    }
+
+    public void put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+
+        if (valueWeight > maxWeight) {
+            return;
+        }
+
+        synchronized (this) {
+            WeightedValue<V> previous = entries.put(key, new WeightedValue<>(value, valueWeight));
+
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+
+            weight += valueWeight;
+
+            evictEldest();
+        }
+    }
+
+    /**
+     * Changes maximum total weight of values; eldest values are evicted right away if cache gets over it.
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+
+        evictEldest();
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hitCount, missCount, evictionCount, entries.size(), weight);
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<K, WeightedValue<V>>> eldestFirst = entries.entrySet().iterator();
+
+        while (weight > maxWeight) {
+            weight -= eldestFirst.next().getValue().weight;
+            eldestFirst.remove();
+            evictionCount++;
+        }
+    }
+
+    private static class WeightedValue<V> {
+        final V value;
+        final long weight;
+
+        WeightedValue(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Snapshot of cache counters, for tuning cache size.
+     */
+    public static class Stats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final int entriesCount;
+        private final long weight;
+
+        Stats(long hitCount, long missCount, long evictionCount, int entriesCount, long weight) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.entriesCount = entriesCount;
+            this.weight = weight;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public int getEntriesCount() {
+            return entriesCount;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", evictionCount=" + evictionCount +
+                ", entriesCount=" + entriesCount +
+                ", weight=" + weight +
+                '}';
+        }
+    }
+}
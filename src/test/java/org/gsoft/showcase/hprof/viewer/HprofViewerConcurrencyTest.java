@@ -0,0 +1,222 @@
+package org.gsoft.showcase.hprof.viewer;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClass;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstance;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstanceField;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpClassInstancePrimitiveField;
+import org.gsoft.showcase.hprof.viewer.HprofViewer.HeapDumpType;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs queries of one viewer from several threads at once against a small dump of the test JVM itself and checks
+ * that every thread gets the same instances as a single thread does.
+ */
+public class HprofViewerConcurrencyTest {
+
+    private static final int ITEMS_COUNT = 20000;
+    private static final int THREADS = 8;
+    private static final int QUERIES_PER_THREAD = 300;
+    private static final int MAX_PAGE_SIZE = 100;
+
+    @ClassRule
+    public static TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    // reachable while heap is dumped
+    private static List<Item> items;
+
+    private static File dumpFile;
+    private static File indexCacheDirectory;
+    private static long itemClassId;
+
+    // instances of Item and their fields as listed by a single thread, in order of listing
+    private static List<String> expectedItems;
+    private static Map<Long, String> expectedItemsById;
+
+    @BeforeClass
+    public static void dumpHeap() throws IOException {
+        items = new ArrayList<>(ITEMS_COUNT);
+
+        for (int i = 0; i < ITEMS_COUNT; i++) {
+            items.add(new Item(i, i == 0 ? null : items.get(i - 1)));
+        }
+
+        dumpFile = new File(temporaryFolder.getRoot(), "test.hprof");
+        indexCacheDirectory = temporaryFolder.newFolder("index");
+
+        ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).dumpHeap(dumpFile.getPath(), true);
+
+        items = null;
+
+        HprofViewer viewer = new HprofViewer(dumpFile, indexCacheDirectory, 1);
+
+        HeapDumpType itemType = viewer.listTypes().stream()
+            .filter(type -> type.getName().endsWith(HprofViewerConcurrencyTest.class.getSimpleName() + "$Item"))
+            .findFirst()
+            .orElse(null);
+
+        assertNotNull("no Item type in dump", itemType);
+        assertEquals(ITEMS_COUNT, itemType.getInstancesCount());
+
+        itemClassId = ((HeapDumpClass) itemType).getClassId();
+
+        expectedItems = new ArrayList<>(ITEMS_COUNT);
+        expectedItemsById = new HashMap<>();
+        Set<String> indexes = new HashSet<>();
+
+        for (long offset = 0; offset < ITEMS_COUNT; offset += MAX_PAGE_SIZE) {
+            for (HeapDumpClassInstance instance : viewer.listClassInstances(itemClassId, offset, MAX_PAGE_SIZE)) {
+                expectedItems.add(instance.toString());
+                expectedItemsById.put(instance.getId(), instance.toString());
+                indexes.add(getPrimitiveFieldValue(instance, "index"));
+            }
+        }
+
+        // every item is decoded with its own field values
+        assertEquals(ITEMS_COUNT, expectedItems.size());
+        assertEquals(ITEMS_COUNT, indexes.size());
+
+        viewer.close();
+    }
+
+    @Test
+    public void concurrentQueriesWithoutCache() throws Exception {
+        try (HprofViewer viewer = new HprofViewer(dumpFile, indexCacheDirectory, 1)) {
+            // every query decodes objects on its own
+            viewer.setDecodedObjectsCacheMaxWeight(0);
+
+            runConcurrentQueries(viewer);
+        }
+    }
+
+    @Test
+    public void concurrentQueriesWithCache() throws Exception {
+        try (HprofViewer viewer = new HprofViewer(dumpFile, indexCacheDirectory, 1)) {
+            // decoded objects are shared between threads through cache, which evicts them often
+            viewer.setDecodedObjectsCacheMaxWeight(256 * 1024);
+
+            runConcurrentQueries(viewer);
+        }
+    }
+
+    @Test
+    public void closedViewerRejectsQueries() throws Exception {
+        HprofViewer viewer = new HprofViewer(dumpFile, indexCacheDirectory, 1);
+        long itemId = expectedItemsById.keySet().iterator().next();
+
+        viewer.listClassInstances(itemClassId, 0, MAX_PAGE_SIZE); // prefetch of the next page is pending or running
+        viewer.close();
+
+        try {
+            viewer.showClassInstance(itemId);
+            fail("query of closed viewer");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            viewer.listClassInstancesAsync(itemClassId, 0, MAX_PAGE_SIZE).get();
+            fail("asynchronous query of closed viewer");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // index is kept and reopened
+        try (HprofViewer reopenedViewer = new HprofViewer(dumpFile, indexCacheDirectory, 1)) {
+            assertEquals(expectedItemsById.get(itemId), reopenedViewer.showClassInstance(itemId).toString());
+        }
+    }
+
+    private static void runConcurrentQueries(HprofViewer viewer) throws Exception {
+        List<Long> itemIds = new ArrayList<>(expectedItemsById.keySet());
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier startBarrier = new CyclicBarrier(THREADS);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int thread = 0; thread < THREADS; thread++) {
+                Random random = new Random(thread);
+
+                futures.add(executor.submit(() -> {
+                    startBarrier.await();
+
+                    for (int i = 0; i < QUERIES_PER_THREAD; i++) {
+                        if (random.nextBoolean()) {
+                            int offset = random.nextInt(ITEMS_COUNT);
+                            int limit = 1 + random.nextInt(MAX_PAGE_SIZE);
+
+                            List<String> page = viewer.listClassInstances(itemClassId, offset, limit).stream()
+                                .map(HeapDumpClassInstance::toString)
+                                .collect(Collectors.toList());
+
+                            assertEquals(expectedItems.subList(offset, Math.min(offset + limit, ITEMS_COUNT)), page);
+                        } else {
+                            long id = itemIds.get(random.nextInt(itemIds.size()));
+
+                            assertEquals(expectedItemsById.get(id), viewer.showClassInstance(id).toString());
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get(); // rethrows failed assertion
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String getPrimitiveFieldValue(HeapDumpClassInstance instance, String fieldName) {
+        for (HeapDumpClassInstanceField field : instance.getInstanceFields()) {
+            if (field.getFieldName().equals(fieldName)) {
+                return ((HeapDumpClassInstancePrimitiveField) field).getValueAsString();
+            }
+        }
+
+        throw new AssertionError("no field " + fieldName + " in " + instance);
+    }
+
+    @SuppressWarnings("unused") // fields are read from dump
+    private static class Item {
+        private final int index;
+        private final long value;
+        private final String name;
+        private final Item previous;
+
+        Item(int index, Item previous) {
+            this.index = index;
+            this.value = index * 31L;
+            this.name = "item" + index;
+            this.previous = previous;
+        }
+    }
+}
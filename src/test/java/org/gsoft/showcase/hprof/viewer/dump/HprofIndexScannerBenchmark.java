@@ -0,0 +1,65 @@
+package org.gsoft.showcase.hprof.viewer.dump;
+
+import edu.tufts.eaftan.hprofparser.handler.NullRecordHandler;
+import edu.tufts.eaftan.hprofparser.parser.HprofParser;
+import edu.tufts.eaftan.hprofparser.parser.HprofParser.ParseOptions;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares throughput of indexing pass of {@link HprofIndexScanner} with the one of HprofParser (the way dumps
+ * used to be indexed). Both run with no-op handlers, so only reading and decoding is measured.
+ * <p>
+ * Usage: {@code HprofIndexScannerBenchmark <hprof file> [iterations]}. Run it on a dump larger than RAM or drop
+ * page cache between runs to measure cold reads.
+ */
+public class HprofIndexScannerBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: HprofIndexScannerBenchmark <hprof file> [iterations]");
+            System.exit(1);
+        }
+
+        File hprofFile = new File(args[0]);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        for (int i = 0; i < iterations; i++) {
+            report("scanner", hprofFile, measureScanner(hprofFile));
+            report("parser ", hprofFile, measureParser(hprofFile));
+        }
+    }
+
+    private static long measureScanner(File hprofFile) throws IOException {
+        long startNanos = System.nanoTime();
+
+        try (HprofIndexScanner scanner = new HprofIndexScanner(hprofFile)) {
+            HprofIndexHandler handler = new HprofIndexHandler() {
+            };
+
+            List<HprofIndexScanner.HeapDumpSegment> segments = scanner.scanRecords(handler);
+            scanner.indexSegments(segments, Collections.singletonList(handler));
+            scanner.scanStrings(handler);
+        }
+
+        return System.nanoTime() - startNanos;
+    }
+
+    private static long measureParser(File hprofFile) throws IOException {
+        long startNanos = System.nanoTime();
+
+        // same options as used for indexing before
+        new HprofParser().parse(hprofFile, new NullRecordHandler(), new ParseOptions(true, true, true));
+
+        return System.nanoTime() - startNanos;
+    }
+
+    private static void report(String name, File hprofFile, long nanos) {
+        double seconds = nanos / 1e9;
+        double megabytesPerSecond = hprofFile.length() / (1024.0 * 1024.0) / seconds;
+
+        System.out.printf("%s: %.2f s, %.1f MB/s%n", name, seconds, megabytesPerSecond);
+    }
+}
@@ -0,0 +1,127 @@
+package org.gsoft.showcase.hprof.viewer.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which indexes are evicted from index cache directory.
+ */
+public class IndexDirectoryTest {
+
+    private static final long MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final int INDEX_BYTES_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File cacheDirectory;
+
+    @Before
+    public void createCacheDirectory() throws IOException {
+        cacheDirectory = temporaryFolder.newFolder("index");
+    }
+
+    @Test
+    public void indexesOfDeletedAndChangedDumpsAreEvicted() throws IOException {
+        File deletedDump = createDump("deleted.hprof");
+        File changedDump = createDump("changed.hprof");
+        File keptDump = createDump("kept.hprof");
+
+        IndexDirectory deletedDumpIndex = createIndex(deletedDump, System.currentTimeMillis());
+        IndexDirectory changedDumpIndex = createIndex(changedDump, System.currentTimeMillis());
+        IndexDirectory keptDumpIndex = createIndex(keptDump, System.currentTimeMillis());
+
+        assertTrue(deletedDump.delete());
+        try (RandomAccessFile dump = new RandomAccessFile(changedDump, "rw")) {
+            dump.setLength(dump.length() + 1);
+        }
+
+        evict(Long.MAX_VALUE);
+
+        assertFalse(deletedDumpIndex.getDirectory().exists());
+        assertFalse(changedDumpIndex.getDirectory().exists());
+        assertTrue(keptDumpIndex.isValid());
+    }
+
+    @Test
+    public void unusedIndexesAreEvicted() throws IOException {
+        long now = System.currentTimeMillis();
+
+        IndexDirectory unusedIndex = createIndex(createDump("unused.hprof"), now - MAX_UNUSED_MILLIS - 1000);
+        IndexDirectory usedIndex = createIndex(createDump("used.hprof"), now - MAX_UNUSED_MILLIS + 60000);
+
+        evict(Long.MAX_VALUE);
+
+        assertFalse(unusedIndex.getDirectory().exists());
+        assertTrue(usedIndex.isValid());
+    }
+
+    @Test
+    public void leastRecentlyUsedIndexesAreEvictedOverSizeLimit() throws IOException {
+        long now = System.currentTimeMillis();
+
+        IndexDirectory oldestIndex = createIndex(createDump("oldest.hprof"), now - 3000);
+        IndexDirectory olderIndex = createIndex(createDump("older.hprof"), now - 2000);
+        IndexDirectory recentIndex = createIndex(createDump("recent.hprof"), now - 1000);
+
+        // key files are small, so two indexes fit but three don't
+        evict(INDEX_BYTES_SIZE * 2 + 1024);
+
+        assertFalse(oldestIndex.getDirectory().exists());
+        assertTrue(olderIndex.isValid());
+        assertTrue(recentIndex.isValid());
+    }
+
+    @Test
+    public void keptAndBeingWrittenIndexesAreNotEvicted() throws IOException {
+        File keptDump = createDump("kept.hprof");
+        IndexDirectory keptIndex = createIndex(keptDump, 0);
+        keptDump.delete();
+
+        IndexDirectory indexBeingWritten = IndexDirectory.forDump(createDump("written.hprof"), cacheDirectory);
+        indexBeingWritten.prepareForWriting();
+
+        IndexDirectory.evictIndexes(cacheDirectory, MAX_UNUSED_MILLIS, 0, Collections.singleton(keptDump));
+
+        assertTrue(keptIndex.getDirectory().exists());
+        assertTrue(indexBeingWritten.getDirectory().exists());
+    }
+
+    private File createDump(String name) throws IOException {
+        File dumpFile = temporaryFolder.newFile(name);
+
+        try (RandomAccessFile dump = new RandomAccessFile(dumpFile, "rw")) {
+            dump.writeBytes("JAVA PROFILE 1.0.2\0" + name);
+        }
+
+        return dumpFile;
+    }
+
+    private IndexDirectory createIndex(File dumpFile, long lastUsedMillis) throws IOException {
+        IndexDirectory index = IndexDirectory.forDump(dumpFile, cacheDirectory);
+        index.prepareForWriting();
+
+        try (RandomAccessFile indexFile = new RandomAccessFile(index.getFile("index.bin"), "rw")) {
+            indexFile.setLength(INDEX_BYTES_SIZE);
+        }
+
+        index.commit();
+        index.getFile("index.key").setLastModified(lastUsedMillis);
+
+        return index;
+    }
+
+    private void evict(long maxTotalBytesSize) {
+        IndexDirectory.evictIndexes(cacheDirectory, MAX_UNUSED_MILLIS, maxTotalBytesSize, Collections.emptySet());
+    }
+}
@@ -0,0 +1,237 @@
+package org.gsoft.showcase.hprof.viewer.storage;
+
+import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.ObjectInfo;
+import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.ObjectType;
+import org.gsoft.showcase.hprof.viewer.util.ClassDictionary;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that storages are read correctly past 2^31 records and 2 GB of file, without filling billions of records:
+ * metadata is written directly and storage files are sparse, with only the records looked at written.
+ */
+public class LargeIndexTest {
+
+    private static final long LARGE_COUNT = (1L << 31) + (1L << 20);
+
+    // layout of object info result file, see ObjectInfoBinarySearchFileStorage
+    private static final int BLOCK_SIZE = 4096;
+    private static final long MIN_ID = 0x7f0000000L;
+    private static final int ID_SHIFT = 3;
+    private static final int ID_BYTES = 4;
+    private static final int DUMP_FILE_OFFSET_BYTES = 5;
+    private static final int CLASS_ORDINAL_AND_TYPE_BYTES = 1;
+    private static final int RECORD_SIZE = ID_BYTES + DUMP_FILE_OFFSET_BYTES + CLASS_ORDINAL_AND_TYPE_BYTES;
+    private static final int BLOCK_RECORDS_SIZE = BLOCK_SIZE / RECORD_SIZE;
+    private static final int TYPE_BITS = 2;
+
+    private static final long[] CLASS_IDS = {0x7e0000010L, 0x7e0000020L};
+
+    private static final long[] LOOKED_UP_RECORD_IDXS = {
+        0, (1L << 31) - 1, 1L << 31, (1L << 31) + 12345, LARGE_COUNT - BLOCK_RECORDS_SIZE - 1, LARGE_COUNT - 1
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void instancesAreListedPastIntOffsets() throws IOException {
+        File storageFile = temporaryFolder.newFile("instances.bin");
+        long smallTypeId = 1;
+        long largeTypeId = 2;
+        long largeTypeRunOffset = 8; // right after the only instance of small type
+
+        try (RandomAccessFile storage = new RandomAccessFile(storageFile, "rw")) {
+            storage.setLength(largeTypeRunOffset + LARGE_COUNT * 8);
+
+            storage.writeLong(instanceId(-1));
+
+            for (long instanceIdx : new long[] {(1L << 31) - 2, LARGE_COUNT - 3}) {
+                storage.seek(largeTypeRunOffset + instanceIdx * 8);
+
+                for (int i = 0; i < 3; i++) {
+                    storage.writeLong(instanceId(instanceIdx + i));
+                }
+            }
+        }
+
+        File metadataFile = temporaryFolder.newFile("instances.meta");
+
+        try (DataOutputStream metadata = new DataOutputStream(new FileOutputStream(metadataFile))) {
+            metadata.writeInt(2);
+
+            metadata.writeLong(smallTypeId);
+            metadata.writeLong(0);
+            metadata.writeLong(1);
+
+            metadata.writeLong(largeTypeId);
+            metadata.writeLong(largeTypeRunOffset);
+            metadata.writeLong(LARGE_COUNT);
+        }
+
+        TypeInstancesFileStorage storage;
+
+        try (DataInputStream metadata = new DataInputStream(new FileInputStream(metadataFile))) {
+            storage = TypeInstancesFileStorage.load(storageFile, metadata);
+        }
+
+        try {
+            assertArrayEquals(new long[] {instanceId(-1)}, storage.listInstancesIds(smallTypeId, 0, 10));
+
+            assertArrayEquals(new long[] {instanceId((1L << 31) - 2), instanceId((1L << 31) - 1),
+                                          instanceId(1L << 31)},
+                              storage.listInstancesIds(largeTypeId, (1L << 31) - 2, 3));
+
+            // page is cut at the last instance
+            assertArrayEquals(new long[] {instanceId(LARGE_COUNT - 2), instanceId(LARGE_COUNT - 1)},
+                              storage.listInstancesIds(largeTypeId, LARGE_COUNT - 2, 10));
+        } finally {
+            storage.discard();
+        }
+    }
+
+    @Test
+    public void objectInfosAreFoundPastIntRecordIndexesWithMappedLookups() throws IOException {
+        checkObjectInfosPastIntRecordIndexes(true);
+    }
+
+    @Test
+    public void objectInfosAreFoundPastIntRecordIndexesWithPositionalLookups() throws IOException {
+        checkObjectInfosPastIntRecordIndexes(false);
+    }
+
+    private void checkObjectInfosPastIntRecordIndexes(boolean memoryMappedLookups) throws IOException {
+        File resultFile = temporaryFolder.newFile("object_info.bin");
+        File metadataFile = temporaryFolder.newFile("object_info.meta");
+
+        writeSparseResultFile(resultFile);
+        writeObjectInfoMetadata(metadataFile);
+
+        ObjectInfoBinarySearchFileStorage storage;
+
+        try (DataInputStream metadata = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(metadataFile)))) {
+            storage = ObjectInfoBinarySearchFileStorage.load(resultFile, metadata, memoryMappedLookups);
+        }
+
+        try {
+            long[] ids = new long[LOOKED_UP_RECORD_IDXS.length];
+
+            for (int i = 0; i < LOOKED_UP_RECORD_IDXS.length; i++) {
+                long recordIdx = LOOKED_UP_RECORD_IDXS[i];
+                ids[i] = objectId(recordIdx);
+
+                checkObjectInfo(recordIdx, storage.getObjectInfo(ids[i]));
+            }
+
+            ObjectInfo[] objectInfos = storage.getObjectInfos(ids);
+
+            for (int i = 0; i < LOOKED_UP_RECORD_IDXS.length; i++) {
+                checkObjectInfo(LOOKED_UP_RECORD_IDXS[i], objectInfos[i]);
+            }
+        } finally {
+            storage.discard();
+        }
+    }
+
+    private static void checkObjectInfo(long recordIdx, ObjectInfo objectInfo) {
+        assertEquals(objectId(recordIdx), objectInfo.getId());
+        assertEquals(dumpFileOffset(recordIdx), objectInfo.getDumpFileOffset());
+        assertEquals(CLASS_IDS[(int) (recordIdx % CLASS_IDS.length)], objectInfo.getClassId());
+        assertEquals(ObjectType.INSTANCE, objectInfo.getType());
+    }
+
+    /**
+     * Writes only blocks holding looked up records; blocks are padded, the last one is not.
+     */
+    private static void writeSparseResultFile(File resultFile) throws IOException {
+        long blocksCount = (LARGE_COUNT + BLOCK_RECORDS_SIZE - 1) / BLOCK_RECORDS_SIZE;
+        long lastBlockRecordsCount = LARGE_COUNT - (blocksCount - 1) * BLOCK_RECORDS_SIZE;
+
+        try (RandomAccessFile result = new RandomAccessFile(resultFile, "rw")) {
+            result.setLength((blocksCount - 1) * BLOCK_SIZE + lastBlockRecordsCount * RECORD_SIZE);
+
+            FileChannel channel = result.getChannel();
+
+            for (long recordIdx : LOOKED_UP_RECORD_IDXS) {
+                long blockIdx = recordIdx / BLOCK_RECORDS_SIZE;
+                long blockFirstRecordIdx = blockIdx * BLOCK_RECORDS_SIZE;
+                long blockEndRecordIdx = Math.min(LARGE_COUNT, blockFirstRecordIdx + BLOCK_RECORDS_SIZE);
+
+                ByteBuffer block = ByteBuffer.allocate((int) (blockEndRecordIdx - blockFirstRecordIdx) * RECORD_SIZE);
+
+                for (long blockRecordIdx = blockFirstRecordIdx; blockRecordIdx < blockEndRecordIdx; blockRecordIdx++) {
+                    putUnsigned(block, blockRecordIdx, ID_BYTES); // key is the record index, as ids are dense
+                    putUnsigned(block, dumpFileOffset(blockRecordIdx), DUMP_FILE_OFFSET_BYTES);
+                    putUnsigned(block, blockRecordIdx % CLASS_IDS.length << TYPE_BITS | ObjectType.INSTANCE.ordinal(),
+                                CLASS_ORDINAL_AND_TYPE_BYTES);
+                }
+
+                block.flip();
+
+                while (block.hasRemaining()) {
+                    channel.write(block, blockIdx * BLOCK_SIZE + block.position());
+                }
+            }
+        }
+    }
+
+    private static void writeObjectInfoMetadata(File metadataFile) throws IOException {
+        try (DataOutputStream metadata = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(metadataFile)))) {
+            metadata.writeLong(LARGE_COUNT);
+            metadata.writeLong(MIN_ID);
+            metadata.writeLong(objectId(LARGE_COUNT - 1));
+            metadata.writeInt(ID_SHIFT);
+            metadata.writeInt(ID_BYTES);
+            metadata.writeInt(DUMP_FILE_OFFSET_BYTES);
+            metadata.writeInt(CLASS_ORDINAL_AND_TYPE_BYTES);
+
+            int blocksCount = (int) ((LARGE_COUNT + BLOCK_RECORDS_SIZE - 1) / BLOCK_RECORDS_SIZE);
+
+            metadata.writeInt(blocksCount);
+            for (long blockIdx = 0; blockIdx < blocksCount; blockIdx++) {
+                metadata.writeLong(blockIdx * BLOCK_RECORDS_SIZE);
+            }
+
+            ClassDictionary classDictionary = new ClassDictionary();
+            for (long classId : CLASS_IDS) {
+                classDictionary.getOrAddOrdinal(classId);
+            }
+            classDictionary.write(metadata);
+        }
+    }
+
+    private static long instanceId(long instanceIdx) {
+        return MIN_ID + (instanceIdx + 1) * 16;
+    }
+
+    private static long objectId(long recordIdx) {
+        return MIN_ID + (recordIdx << ID_SHIFT);
+    }
+
+    private static long dumpFileOffset(long recordIdx) {
+        return (1L << 32) + recordIdx * 24; // past 4 GB, so that offsets take 5 bytes
+    }
+
+    private static void putUnsigned(ByteBuffer buffer, long value, int bytes) {
+        for (int shift = (bytes - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            buffer.put((byte) (value >>> shift));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.gsoft.showcase.hprof.viewer.storage;
+
+import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.ObjectInfo;
+import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.ObjectType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Looks up object infos of one storage from several threads at once, one id at a time and in batches.
+ */
+public class ObjectInfoConcurrentLookupTest {
+
+    private static final int OBJECTS_COUNT = 200000;
+    private static final int THREADS = 8;
+    private static final int LOOKUPS_PER_THREAD = 20000;
+    private static final int MAX_BATCH_SIZE = 50;
+
+    private static final long FIRST_OBJECT_ID = 0x7f0000000L;
+    private static final int OBJECT_ALIGNMENT = 16;
+    private static final int CLASSES_COUNT = 100;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void concurrentMappedLookups() throws Exception {
+        checkConcurrentLookups(true);
+    }
+
+    @Test
+    public void concurrentPositionalLookups() throws Exception {
+        checkConcurrentLookups(false);
+    }
+
+    private void checkConcurrentLookups(boolean memoryMappedLookups) throws Exception {
+        File resultFile = temporaryFolder.newFile("object_info.bin");
+
+        ObjectInfoBinarySearchFileStorage storage = fillAndLoadStorage(resultFile, memoryMappedLookups);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier startBarrier = new CyclicBarrier(THREADS);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int thread = 0; thread < THREADS; thread++) {
+                Random random = new Random(thread);
+
+                futures.add(executor.submit(() -> {
+                    startBarrier.await();
+
+                    for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                        if (random.nextBoolean()) {
+                            int idx = random.nextInt(OBJECTS_COUNT);
+
+                            checkObjectInfo(idx, storage.getObjectInfo(objectId(idx)));
+                        } else {
+                            int[] idxs = new int[1 + random.nextInt(MAX_BATCH_SIZE)];
+                            long[] ids = new long[idxs.length];
+
+                            for (int k = 0; k < idxs.length; k++) {
+                                idxs[k] = random.nextInt(OBJECTS_COUNT);
+                                ids[k] = objectId(idxs[k]);
+                            }
+
+                            ObjectInfo[] objectInfos = storage.getObjectInfos(ids);
+
+                            for (int k = 0; k < idxs.length; k++) {
+                                checkObjectInfo(idxs[k], objectInfos[k]);
+                            }
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get(); // rethrows failed assertion
+            }
+        } finally {
+            executor.shutdownNow();
+            storage.close();
+        }
+    }
+
+    private static ObjectInfoBinarySearchFileStorage fillAndLoadStorage(File resultFile, boolean memoryMappedLookups)
+        throws IOException {
+        ObjectInfoBinarySearchFileStorage filledStorage = new ObjectInfoBinarySearchFileStorage(resultFile);
+
+        for (int i = 0; i < OBJECTS_COUNT; i++) {
+            filledStorage.registerObjectInfo(objectId(i), classId(i), dumpFileOffset(i), ObjectType.INSTANCE);
+        }
+
+        filledStorage.finishRegistering();
+
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(metadata)) {
+            filledStorage.writeMetadata(output);
+        } finally {
+            filledStorage.close();
+        }
+
+        return ObjectInfoBinarySearchFileStorage.load(
+            resultFile, new DataInputStream(new ByteArrayInputStream(metadata.toByteArray())), memoryMappedLookups);
+    }
+
+    private static void checkObjectInfo(int idx, ObjectInfo objectInfo) {
+        assertEquals(objectId(idx), objectInfo.getId());
+        assertEquals(classId(idx), objectInfo.getClassId());
+        assertEquals(dumpFileOffset(idx), objectInfo.getDumpFileOffset());
+        assertEquals(ObjectType.INSTANCE, objectInfo.getType());
+    }
+
+    private static long objectId(int idx) {
+        return FIRST_OBJECT_ID + (long) idx * OBJECT_ALIGNMENT;
+    }
+
+    private static long classId(int idx) {
+        return FIRST_OBJECT_ID - (idx % CLASSES_COUNT + 1) * OBJECT_ALIGNMENT;
+    }
+
+    private static long dumpFileOffset(int idx) {
+        return (long) idx * 40;
+    }
+}
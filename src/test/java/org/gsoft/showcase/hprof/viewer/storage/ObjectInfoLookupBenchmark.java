@@ -0,0 +1,110 @@
+package org.gsoft.showcase.hprof.viewer.storage;
+
+import org.gsoft.showcase.hprof.viewer.storage.ObjectInfoBinarySearchFileStorage.ObjectType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares throughput of random lookups of {@link ObjectInfoBinarySearchFileStorage} with memory mapped result file
+ * and with positional reads of its blocks. Both modes look up the same ids in the same result file, filled with
+ * synthetic objects beforehand.
+ * <p>
+ * Usage: {@code ObjectInfoLookupBenchmark [objects] [lookups] [iterations]}; 50 million objects by default. Result
+ * file (~500 MB for 50 million objects) is kept in temporary directory while benchmark runs.
+ */
+public class ObjectInfoLookupBenchmark {
+
+    private static final long FIRST_OBJECT_ID = 0x7f0000000L;
+    private static final int OBJECT_ALIGNMENT = 16;
+    private static final int CLASSES_COUNT = 1000;
+    private static final int OBJECT_RECORD_SIZE = 40;
+
+    public static void main(String[] args) throws IOException {
+        long objectsCount = args.length > 0 ? Long.parseLong(args[0]) : 50000000;
+        int lookupsCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        File resultFile = File.createTempFile("object_info_lookup_benchmark_", ".bin");
+        resultFile.deleteOnExit();
+
+        byte[] metadata = fillStorage(resultFile, objectsCount);
+
+        long[] lookupIds = new long[lookupsCount];
+        Random random = new Random(42);
+
+        for (int i = 0; i < lookupsCount; i++) {
+            lookupIds[i] = objectId((long) (random.nextDouble() * objectsCount));
+        }
+
+        try {
+            for (int i = 0; i < iterations; i++) {
+                report("mapped    ", lookupsCount, measureLookups(resultFile, metadata, true, lookupIds));
+                report("positional", lookupsCount, measureLookups(resultFile, metadata, false, lookupIds));
+            }
+        } finally {
+            resultFile.delete();
+        }
+    }
+
+    private static byte[] fillStorage(File resultFile, long objectsCount) throws IOException {
+        long startNanos = System.nanoTime();
+
+        ObjectInfoBinarySearchFileStorage storage = new ObjectInfoBinarySearchFileStorage(resultFile);
+
+        for (long i = 0; i < objectsCount; i++) {
+            storage.registerObjectInfo(objectId(i), classId(i), i * OBJECT_RECORD_SIZE, ObjectType.INSTANCE);
+        }
+
+        storage.finishRegistering();
+
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(metadata)) {
+            storage.writeMetadata(output);
+        }
+
+        System.out.printf("filled %d objects: %.2f s, result file %d MB%n", objectsCount,
+                          (System.nanoTime() - startNanos) / 1e9, resultFile.length() / (1024 * 1024));
+
+        return metadata.toByteArray();
+    }
+
+    private static long measureLookups(File resultFile, byte[] metadata, boolean memoryMappedLookups,
+                                       long[] lookupIds) throws IOException {
+        ObjectInfoBinarySearchFileStorage storage = ObjectInfoBinarySearchFileStorage.load(
+            resultFile, new DataInputStream(new ByteArrayInputStream(metadata)), memoryMappedLookups);
+
+        try {
+            long startNanos = System.nanoTime();
+
+            for (long id : lookupIds) {
+                if (storage.getObjectInfo(id).getClassId() != classId((id - FIRST_OBJECT_ID) / OBJECT_ALIGNMENT)) {
+                    throw new IllegalStateException("wrong object info for id " + id);
+                }
+            }
+
+            return System.nanoTime() - startNanos;
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static long objectId(long idx) {
+        return FIRST_OBJECT_ID + idx * OBJECT_ALIGNMENT;
+    }
+
+    private static long classId(long idx) {
+        return FIRST_OBJECT_ID - (idx % CLASSES_COUNT + 1) * OBJECT_ALIGNMENT;
+    }
+
+    private static void report(String name, int lookupsCount, long nanos) {
+        double seconds = nanos / 1e9;
+
+        System.out.printf("%s: %.2f s, %.0f lookups/s%n", name, seconds, lookupsCount / seconds);
+    }
+}